@@ -0,0 +1,431 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query result series stored by column instead of as rows of boxed values. Numeric and boolean columns are
+ * primitive arrays, string columns are dictionary encoded: an int code per row into the column's distinct values.
+ * The time column is a long column in the epoch unit the query asked for.
+ * Rows where a column has no value are marked null; the array then holds 0, false or code -1.
+ * <p>
+ * Column types are taken from the values InfluxDB returns: integers make a Long column, which becomes a Double
+ * column once a fraction shows up (InfluxDB writes floats without a fraction as integers). A column mixing
+ * numbers, booleans and strings becomes a String column.
+ */
+public final class ColumnarSeries {
+
+    public enum ColumnType {
+        Long, Double, Boolean, String
+    }
+
+    private final int statement;
+    private final String name;
+    private final Map<String, String> tags;
+    private final String[] columns;
+    private final Column[] data;
+    private final int rows;
+
+    private ColumnarSeries(Builder builder) {
+        this.statement = builder.statement;
+        this.name = builder.name;
+        this.tags = builder.tags == null ? Collections.<String, String>emptyMap() : builder.tags;
+        this.columns = builder.columns;
+        this.data = builder.data;
+        this.rows = builder.rows;
+        for (Column column : data) {
+            column.trim(rows);
+        }
+    }
+
+    /**
+     * @return index of the query statement this series belongs to
+     */
+    public int getStatement() {
+        return statement;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public int getRowCount() {
+        return rows;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    /**
+     * @return index of the named column, or -1
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    public ColumnType getColumnType(int column) {
+        return data[column].type;
+    }
+
+    public boolean isNull(int column, int row) {
+        BitSet nulls = data[column].nulls;
+        return nulls != null && nulls.get(row);
+    }
+
+    /**
+     * @return the time column
+     * @throws IllegalStateException when the series has no numeric time column
+     */
+    public long[] getTimes() {
+        int time = getColumnIndex("time");
+        if (time < 0 || data[time].type != ColumnType.Long) {
+            throw new IllegalStateException("Series " + name + " has no epoch time column");
+        }
+        return data[time].longs;
+    }
+
+    /**
+     * @return the values of a Long column, the array is not copied
+     */
+    public long[] getLongs(int column) {
+        return typed(column, ColumnType.Long).longs;
+    }
+
+    /**
+     * @return the values of a Double column, the array is not copied
+     */
+    public double[] getDoubles(int column) {
+        return typed(column, ColumnType.Double).doubles;
+    }
+
+    /**
+     * @return the values of a Boolean column, the array is not copied
+     */
+    public boolean[] getBooleans(int column) {
+        return typed(column, ColumnType.Boolean).booleans;
+    }
+
+    /**
+     * @return the dictionary codes of a String column, -1 for null; the array is not copied
+     */
+    public int[] getStringCodes(int column) {
+        return typed(column, ColumnType.String).codes;
+    }
+
+    /**
+     * @return the distinct values of a String column, indexed by code
+     */
+    public List<String> getDictionary(int column) {
+        return Collections.unmodifiableList(typed(column, ColumnType.String).dictionary);
+    }
+
+    public String getString(int column, int row) {
+        Column c = typed(column, ColumnType.String);
+        return c.codes[row] < 0 ? null : c.dictionary.get(c.codes[row]);
+    }
+
+    /**
+     * @return the value at the given cell boxed as Long, Double, Boolean or String, or null
+     */
+    public Object getValue(int column, int row) {
+        if (isNull(column, row)) return null;
+        Column c = data[column];
+        switch (c.type) {
+            case Long:
+                return c.longs[row];
+            case Double:
+                return c.doubles[row];
+            case Boolean:
+                return c.booleans[row];
+            default:
+                return c.dictionary.get(c.codes[row]);
+        }
+    }
+
+    private Column typed(int column, ColumnType type) {
+        Column c = data[column];
+        if (c.type != type) {
+            throw new IllegalStateException("Column " + columns[column] + " is " + c.type + ", not " + type);
+        }
+        return c;
+    }
+
+    /**
+     * Growable column; starts untyped (all null) and is promoted as values of other types are added
+     */
+    private static final class Column {
+        ColumnType type;
+        long[] longs;
+        double[] doubles;
+        boolean[] booleans;
+        int[] codes;
+        List<String> dictionary;
+        Map<String, Integer> dictionaryCodes;
+        BitSet nulls;
+        int size;
+
+        void addNull() {
+            if (nulls == null) nulls = new BitSet();
+            nulls.set(size);
+            ensureCapacity();
+            if (type == ColumnType.String) {
+                codes[size] = -1;
+            }
+            size++;
+        }
+
+        void addLong(long value) {
+            if (type == null) allocate(ColumnType.Long);
+            ensureCapacity();
+            switch (type) {
+                case Long:
+                    longs[size] = value;
+                    break;
+                case Double:
+                    doubles[size] = value;
+                    break;
+                default:
+                    addString(String.valueOf(value));
+                    return;
+            }
+            size++;
+        }
+
+        void addDouble(double value) {
+            if (type == null) allocate(ColumnType.Double);
+            if (type == ColumnType.Long) {
+                doubles = new double[longs.length];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = longs[i];
+                }
+                longs = null;
+                type = ColumnType.Double;
+            }
+            if (type != ColumnType.Double) {
+                addString(String.valueOf(value));
+                return;
+            }
+            ensureCapacity();
+            doubles[size++] = value;
+        }
+
+        void addBoolean(boolean value) {
+            if (type == null) allocate(ColumnType.Boolean);
+            if (type != ColumnType.Boolean) {
+                addString(String.valueOf(value));
+                return;
+            }
+            ensureCapacity();
+            booleans[size++] = value;
+        }
+
+        void addString(String value) {
+            if (type != ColumnType.String) {
+                toStrings();
+            }
+            ensureCapacity();
+            Integer code = dictionaryCodes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryCodes.put(value, code);
+            }
+            codes[size++] = code;
+        }
+
+        private void allocate(ColumnType type) {
+            this.type = type;
+            int capacity = Math.max(16, size * 2);
+            switch (type) {
+                case Long:
+                    longs = new long[capacity];
+                    break;
+                case Double:
+                    doubles = new double[capacity];
+                    break;
+                case Boolean:
+                    booleans = new boolean[capacity];
+                    break;
+            }
+        }
+
+        /**
+         * Convert the values added so far to a String column
+         */
+        private void toStrings() {
+            int[] converted = new int[Math.max(16, size * 2)];
+            dictionary = new ArrayList<>();
+            dictionaryCodes = new HashMap<>();
+            ColumnType from = type;
+            type = ColumnType.String;
+            codes = converted;
+            int n = size;
+            size = 0;
+            for (int i = 0; i < n; i++) {
+                if (from == null || (nulls != null && nulls.get(i))) {
+                    codes[size++] = -1;
+                } else {
+                    String value = from == ColumnType.Long ? String.valueOf(longs[i])
+                            : from == ColumnType.Double ? String.valueOf(doubles[i])
+                            : String.valueOf(booleans[i]);
+                    addString(value);
+                }
+            }
+            longs = null;
+            doubles = null;
+            booleans = null;
+        }
+
+        private void ensureCapacity() {
+            if (type == null) return;
+            switch (type) {
+                case Long:
+                    if (size == longs.length) longs = Arrays.copyOf(longs, size * 2);
+                    break;
+                case Double:
+                    if (size == doubles.length) doubles = Arrays.copyOf(doubles, size * 2);
+                    break;
+                case Boolean:
+                    if (size == booleans.length) booleans = Arrays.copyOf(booleans, size * 2);
+                    break;
+                case String:
+                    if (size == codes.length) codes = Arrays.copyOf(codes, size * 2);
+                    break;
+            }
+        }
+
+        void trim(int rows) {
+            if (type == null) {
+                // no value at all, keep it as an all null Double column
+                allocate(ColumnType.Double);
+            }
+            switch (type) {
+                case Long:
+                    longs = Arrays.copyOf(longs, rows);
+                    break;
+                case Double:
+                    doubles = Arrays.copyOf(doubles, rows);
+                    break;
+                case Boolean:
+                    booleans = Arrays.copyOf(booleans, rows);
+                    break;
+                case String:
+                    codes = Arrays.copyOf(codes, rows);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Collects the rows of a series, possibly over several chunks, straight from the parser
+     */
+    static final class Builder {
+        private final int statement;
+        private final String name;
+        private final Map<String, String> tags;
+        private final String[] columns;
+        private final Column[] data;
+        private int rows = 0;
+        private int column = 0;
+
+        Builder(int statement, String name, Map<String, String> tags, List<String> columns) {
+            if (columns == null) {
+                throw new IllegalArgumentException("Series " + name + " has values before its columns");
+            }
+            this.statement = statement;
+            this.name = name;
+            this.tags = tags;
+            this.columns = columns.toArray(new String[columns.size()]);
+            this.data = new Column[this.columns.length];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = new Column();
+            }
+        }
+
+        boolean isSameSeries(String name, Map<String, String> tags) {
+            return (this.name == null ? name == null : this.name.equals(name))
+                    && (this.tags == null ? tags == null : this.tags.equals(tags));
+        }
+
+        Builder addNull() {
+            data[next()].addNull();
+            return this;
+        }
+
+        Builder add(long value) {
+            data[next()].addLong(value);
+            return this;
+        }
+
+        Builder add(double value) {
+            data[next()].addDouble(value);
+            return this;
+        }
+
+        Builder add(boolean value) {
+            data[next()].addBoolean(value);
+            return this;
+        }
+
+        Builder add(String value) {
+            data[next()].addString(value);
+            return this;
+        }
+
+        /**
+         * End the current row; columns the row had no value for are null
+         */
+        Builder endRow() {
+            while (column < data.length) {
+                data[column++].addNull();
+            }
+            column = 0;
+            rows++;
+            return this;
+        }
+
+        private int next() {
+            if (column == data.length) {
+                throw new IllegalArgumentException("Row " + rows + " of series " + name + " has more values than columns");
+            }
+            return column++;
+        }
+
+        ColumnarSeries build() {
+            return new ColumnarSeries(this);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The InfluxDB servers a service talks to, usually replicas of the same database, with their health.
+ * An endpoint that fails to answer is taken out of rotation for the retry interval; it is only tried again
+ * before that when no healthy endpoint is left. Queries go to the healthy endpoint with the fewest
+ * outstanding requests, ties are broken round robin.
+ */
+class Endpoints {
+
+    static class Endpoint {
+        final String host;
+        final String url;
+        final AtomicInteger outstanding = new AtomicInteger();
+        // milliseconds since the epoch until which the endpoint is considered down, 0 when healthy
+        volatile long downUntil = 0;
+
+        Endpoint(String host, String port) {
+            this.host = host;
+            this.url = "http://" + host + ":" + port;
+        }
+
+        boolean isHealthy(long now) {
+            return downUntil <= now;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Endpoints.class);
+
+    private final List<Endpoint> endpoints;
+    private final long retryMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param hosts comma separated host or host:port
+     * @param defaultPort port of hosts without one
+     * @param retryMillis how long a failed endpoint is out of rotation
+     */
+    Endpoints(String hosts, String defaultPort, long retryMillis) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            int colon = host.indexOf(':');
+            endpoints.add(colon < 0 ? new Endpoint(host, defaultPort)
+                    : new Endpoint(host.substring(0, colon), host.substring(colon + 1)));
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No InfluxDB host in '" + hosts + "'");
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.retryMillis = retryMillis;
+    }
+
+    List<Endpoint> all() {
+        return endpoints;
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    int getHealthy() {
+        long now = System.currentTimeMillis();
+        int healthy = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) healthy++;
+        }
+        return healthy;
+    }
+
+    /**
+     * @return all endpoints in the order to try a query on: healthy ones by outstanding requests,
+     * then the ones that are down by how soon they are due to be tried again
+     */
+    List<Endpoint> forQuery() {
+        if (endpoints.size() == 1) {
+            return endpoints;
+        }
+        final long now = System.currentTimeMillis();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size();
+        List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+        final List<long[]> keys = new ArrayList<>(endpoints.size());
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            candidates.add(endpoint);
+            // snapshot the sort keys, they change while sorting
+            keys.add(new long[]{endpoint.isHealthy(now) ? 0 : endpoint.downUntil, endpoint.outstanding.get()});
+        }
+        List<Integer> order = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            order.add(i);
+        }
+        // stable, so endpoints that tie keep their round robin order
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long[] ka = keys.get(a);
+                long[] kb = keys.get(b);
+                if (ka[0] != kb[0]) return ka[0] < kb[0] ? -1 : 1;
+                if (ka[1] != kb[1]) return ka[1] < kb[1] ? -1 : 1;
+                return 0;
+            }
+        });
+        List<Endpoint> ordered = new ArrayList<>(candidates.size());
+        for (int i : order) {
+            ordered.add(candidates.get(i));
+        }
+        return ordered;
+    }
+
+    void failed(Endpoint endpoint, Exception cause) {
+        long now = System.currentTimeMillis();
+        if (endpoint.isHealthy(now)) {
+            logger.warn("InfluxDB at {} failed, taking it out of rotation for {} ms: {}",
+                    new Object[]{endpoint, retryMillis, cause.toString()});
+        }
+        endpoint.downUntil = now + retryMillis;
+    }
+
+    void succeeded(Endpoint endpoint) {
+        if (endpoint.downUntil != 0) {
+            logger.info("InfluxDB at {} is back", endpoint);
+            endpoint.downUntil = 0;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.nifi.influxdb.InfluxDBServiceInterface.Series;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the newest timestamp a query has emitted in a local file, so each run of the query only needs to read
+ * what is newer. The query marks where the time condition goes with {@link #TIME_FILTER}.
+ * State belongs to the query text: when the query changes, it starts over.
+ */
+class IncrementalState {
+
+    static final String TIME_FILTER = "$timeFilter";
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final String LAST_SEEN = "last.seen";
+    private static final String QUERY = "query";
+
+    private final File file;
+    private final String query;
+    // nanoseconds since the epoch, Long.MIN_VALUE before anything was seen
+    private long lastSeen = Long.MIN_VALUE;
+
+    IncrementalState(File file, String query) throws IOException {
+        this.file = file;
+        this.query = query;
+        if (file.exists()) {
+            Properties state = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                state.load(in);
+            }
+            if (query.equals(state.getProperty(QUERY)) && state.getProperty(LAST_SEEN) != null) {
+                lastSeen = Long.parseLong(state.getProperty(LAST_SEEN));
+            }
+        }
+    }
+
+    synchronized long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @param overlapNanos how far before the newest timestamp seen to start again, to pick up late data
+     * @param lookbackNanos how far back to start when nothing was seen yet
+     * @return the query with its time filter filled in
+     */
+    String apply(long overlapNanos, long lookbackNanos) {
+        long last = getLastSeen();
+        String filter = last == Long.MIN_VALUE
+                ? "time > now() - " + TimeUnit.NANOSECONDS.toMillis(lookbackNanos) + "ms"
+                : "time > '" + formatTime(last - overlapNanos) + "'";
+        return query.replace(TIME_FILTER, filter);
+    }
+
+    /**
+     * @param overlapNanos how far before the newest timestamp seen to start again, to pick up late data
+     * @param lookbackNanos how far back to start when nothing was seen yet
+     * @return the time the next run reads data after, in nanoseconds since the epoch
+     */
+    long start(long overlapNanos, long lookbackNanos) {
+        long last = getLastSeen();
+        return last == Long.MIN_VALUE
+                ? TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - lookbackNanos
+                : last - overlapNanos;
+    }
+
+    /**
+     * @param from nanoseconds since the epoch, inclusive
+     * @param to nanoseconds since the epoch, exclusive
+     * @return the time condition selecting the range
+     */
+    static String rangeFilter(long from, long to) {
+        return "time >= '" + formatTime(from) + "' AND time < '" + formatTime(to) + "'";
+    }
+
+    /**
+     * Remember the newest timestamp of a run, once its results have been committed
+     * @param newest nanoseconds since the epoch
+     * @throws IOException
+     */
+    synchronized void advance(long newest) throws IOException {
+        if (newest <= lastSeen) {
+            return;
+        }
+        lastSeen = newest;
+        Properties state = new Properties();
+        state.setProperty(QUERY, query);
+        state.setProperty(LAST_SEEN, String.valueOf(lastSeen));
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory for " + file);
+        }
+        // replace the file in one step, so a crash never leaves it half written
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            state.store(out, "InfluxDBReader incremental state");
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Tracks the newest timestamp in the series passing through it
+     */
+    static class Tracker implements InfluxDBServiceInterface.SeriesHandler {
+        private final InfluxDBServiceInterface.SeriesHandler handler;
+        private long newest = Long.MIN_VALUE;
+
+        Tracker(InfluxDBServiceInterface.SeriesHandler handler) {
+            this.handler = handler;
+        }
+
+        long getNewest() {
+            return newest;
+        }
+
+        void seen(Series series) {
+            if (series.getColumns() == null || series.getValues() == null) {
+                return;
+            }
+            int time = series.getColumns().indexOf("time");
+            if (time < 0) {
+                return;
+            }
+            for (List<?> row : series.getValues()) {
+                if (row.get(time) != null) {
+                    newest = Math.max(newest, parseTime(row.get(time)));
+                }
+            }
+        }
+
+        @Override
+        public void series(int statement, Series series, boolean partial) throws IOException {
+            seen(series);
+            if (handler != null) {
+                handler.series(statement, series, partial);
+            }
+        }
+
+        @Override
+        public void error(int statement, String error) throws IOException {
+            if (handler != null) {
+                handler.error(statement, error);
+            }
+        }
+    }
+
+    /**
+     * @param time an RFC3339 time string as InfluxDB returns by default, or an epoch in nanoseconds
+     * @return nanoseconds since the epoch
+     */
+    static long parseTime(Object time) {
+        if (time instanceof Number) {
+            return ((Number) time).longValue();
+        }
+        String s = time.toString();
+        // yyyy-MM-ddTHH:mm:ss[.fraction](Z|+hh:mm|-hh:mm)
+        Calendar calendar = new GregorianCalendar(UTC);
+        calendar.clear();
+        calendar.set(Integer.parseInt(s.substring(0, 4)), Integer.parseInt(s.substring(5, 7)) - 1,
+                Integer.parseInt(s.substring(8, 10)), Integer.parseInt(s.substring(11, 13)),
+                Integer.parseInt(s.substring(14, 16)), Integer.parseInt(s.substring(17, 19)));
+        long nanos = 0;
+        int i = 19;
+        if (i < s.length() && s.charAt(i) == '.') {
+            int digits = 0;
+            for (i++; i < s.length() && Character.isDigit(s.charAt(i)); i++) {
+                if (digits++ < 9) {
+                    nanos = nanos * 10 + (s.charAt(i) - '0');
+                }
+            }
+            for (; digits < 9; digits++) {
+                nanos *= 10;
+            }
+        }
+        long offsetMillis = 0;
+        if (i < s.length() && s.charAt(i) != 'Z') {
+            int sign = s.charAt(i) == '-' ? -1 : 1;
+            offsetMillis = sign * (TimeUnit.HOURS.toMillis(Integer.parseInt(s.substring(i + 1, i + 3)))
+                    + TimeUnit.MINUTES.toMillis(Integer.parseInt(s.substring(i + 4, i + 6))));
+        }
+        return TimeUnit.MILLISECONDS.toNanos(calendar.getTimeInMillis() - offsetMillis) + nanos;
+    }
+
+    /**
+     * @param nanos since the epoch
+     * @return the time as RFC3339 in UTC with nanoseconds
+     */
+    static String formatTime(long nanos) {
+        long seconds = nanos / 1000000000L;
+        long fraction = nanos % 1000000000L;
+        if (fraction < 0) {
+            seconds--;
+            fraction += 1000000000L;
+        }
+        Calendar calendar = new GregorianCalendar(UTC);
+        calendar.setTimeInMillis(TimeUnit.SECONDS.toMillis(seconds));
+        return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%09dZ", calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND), fraction);
+    }
+}
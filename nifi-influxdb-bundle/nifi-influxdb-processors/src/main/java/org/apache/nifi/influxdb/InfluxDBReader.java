@@ -16,7 +16,8 @@ package org.apache.nifi.influxdb;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import com.bazaarvoice.jolt.JsonUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.nifi.influxdb.InfluxDBServiceInterface.Series;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
@@ -24,27 +25,50 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ProcessorLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.stream.io.BufferedInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 @Tags({"influxdb", "time-series", "query"})
 @CapabilityDescription("Issues queries to an InfluxDB (v. 0.9) time-series database configured by InfluxDBService")
 @SeeAlso({InfluxDBService.class, InfluxDBWriter.class})
-
+@WritesAttributes({
+        @WritesAttribute(attribute="influxdb.statement", description="Index of the query statement a streamed series belongs to"),
+        @WritesAttribute(attribute="influxdb.series", description="Name of a streamed series"),
+        @WritesAttribute(attribute="influxdb.slice", description="Index of the time slice the result belongs to, when the query is sliced"),
+        @WritesAttribute(attribute="influxdb.slice.count", description="Number of time slices, when the query is sliced"),
+        @WritesAttribute(attribute="influxdb.error", description="Why the query for an incoming flow file failed")
+})
 public class InfluxDBReader extends AbstractProcessor {
 
+    // rows per chunk for streamed formats when no chunk size is configured
+    static final int DEFAULT_CHUNK_SIZE = 10000;
+
     public static final PropertyDescriptor INFLUXDB_SERVICE = new PropertyDescriptor.Builder()
             .name("INFLUXDB_SERVICE").displayName("InfluxDB Service")
             .description("Instance of an InfluxDB Service specifying the database configuration to use")
@@ -54,7 +78,7 @@ public class InfluxDBReader extends AbstractProcessor {
 
     public static final PropertyDescriptor QUERY = new PropertyDescriptor.Builder()
             .name("QUERY").displayName("InfluxDB Query")
-            .description("Query to submit to InfluxDB when triggered")
+            .description("Query to submit to InfluxDB when triggered; with a batch size, evaluated against the attributes of each incoming flow file")
             .required(true)
             .expressionLanguageSupported(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
@@ -77,6 +101,108 @@ public class InfluxDBReader extends AbstractProcessor {
             .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor.Builder()
+            .name("OUTPUT_FORMAT").displayName("Output Format")
+            .description("Format of the query results: the InfluxDB JSON result shape, CSV with a header line, newline " +
+                    "delimited JSON with one object per row, or InfluxDB line protocol. Every format but JSON is streamed " +
+                    "into one flow file per series as it is read, in chunks of the chunk size or " + DEFAULT_CHUNK_SIZE + " rows")
+            .required(true)
+            .defaultValue(OutputFormat.JSON.name())
+            .allowableValues(OutputFormat.values())
+            .build();
+
+    public static final PropertyDescriptor CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("CHUNK_SIZE").displayName("Chunk Size")
+            .description("[optional] when set, results are streamed from InfluxDB in chunks of at most this many rows and " +
+                    "written to one flow file per series as they arrive, so results of any size can be read. " +
+                    "Without a chunk size, JSON results are read at once into one flow file per statement. A batch of several " +
+                    "statements is requested unchunked but still streamed, as InfluxDB 0.9 does not tell which statement a chunk belongs to")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor STATE_FILE = new PropertyDescriptor.Builder()
+            .name("STATE_FILE").displayName("Incremental State File")
+            .description("[optional] enables incremental polling: the newest timestamp emitted is kept in this file and " +
+                    "the query must contain " + IncrementalState.TIME_FILTER + " as a time condition, which is replaced with " +
+                    "time > (newest timestamp - overlap) on every run, so each run only reads new data. " +
+                    "State is reset when the query changes")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OVERLAP = new PropertyDescriptor.Builder()
+            .name("OVERLAP").displayName("Incremental Overlap")
+            .description("Only applicable with a state file; how far before the newest timestamp emitted a run starts, " +
+                    "to pick up data that arrived late. Rows in the overlap are emitted again")
+            .required(true)
+            .defaultValue("0 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INITIAL_LOOKBACK = new PropertyDescriptor.Builder()
+            .name("INITIAL_LOOKBACK").displayName("Incremental Initial Lookback")
+            .description("Only applicable with a state file; how far back from now the first run starts")
+            .required(true)
+            .defaultValue("1 hour")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TIME_SLICES = new PropertyDescriptor.Builder()
+            .name("TIME_SLICES").displayName("Time Slices")
+            .description("Number of equal time slices to split the query's time range into. Slices are queried concurrently " +
+                    "and their results emitted in time order, each flow file carrying its influxdb.slice. The query must contain " +
+                    IncrementalState.TIME_FILTER + " as its time condition, and the range is taken from Range Start and Range End, " +
+                    "or from the incremental state")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SLICE_PARALLELISM = new PropertyDescriptor.Builder()
+            .name("SLICE_PARALLELISM").displayName("Slice Parallelism")
+            .description("Maximum number of time slices queried at once. The result of every slice in flight is held in " +
+                    "memory in full until all slices before it have been emitted, so the memory needed grows with this " +
+                    "and the size of a slice's result")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RANGE_START = new PropertyDescriptor.Builder()
+            .name("RANGE_START").displayName("Range Start")
+            .description("[optional] start of the time range to query, as an RFC3339 time such as 2015-06-11T00:00:00Z. " +
+                    "When set, " + IncrementalState.TIME_FILTER + " in the query is replaced with the range")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RANGE_END = new PropertyDescriptor.Builder()
+            .name("RANGE_END").displayName("Range End")
+            .description("[optional] end (exclusive) of the time range to query, as an RFC3339 time; defaults to now")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("BATCH_SIZE").displayName("Batch Size")
+            .description("[optional] when set, a query is run for every incoming flow file instead of on schedule, evaluated " +
+                    "against its attributes. The queries of up to this many flow files are sent as one multi-statement request " +
+                    "and every result goes out as a child of the flow file it was queried for. Cannot be combined with " +
+                    "incremental polling or time slices")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCHES_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("BATCHES_IN_FLIGHT").displayName("Batches In Flight")
+            .description("Only applicable with a batch size and JSON results that are not chunked; number of batches taken " +
+                    "per run and queried concurrently by the service's async threads, instead of one batch at a time")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Query results are sent here in json format.")
@@ -87,8 +213,15 @@ public class InfluxDBReader extends AbstractProcessor {
             .description("failures (exceptions) are sent here.")
             .build();
 
+    public static final Relationship ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("Incoming flow files are sent here once their query ran.")
+            .build();
+
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
+    private volatile IncrementalState incrementalState;
+    private volatile ExecutorService slicePool;
 
 
     @Override
@@ -98,11 +231,23 @@ public class InfluxDBReader extends AbstractProcessor {
         descriptors.add(QUERY);
         descriptors.add(FILENAME);
         descriptors.add(PRETTY);
+        descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(CHUNK_SIZE);
+        descriptors.add(STATE_FILE);
+        descriptors.add(OVERLAP);
+        descriptors.add(INITIAL_LOOKBACK);
+        descriptors.add(TIME_SLICES);
+        descriptors.add(SLICE_PARALLELISM);
+        descriptors.add(RANGE_START);
+        descriptors.add(RANGE_END);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(BATCHES_IN_FLIGHT);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(SUCCESS);
         relationships.add(FAILURE);
+        relationships.add(ORIGINAL);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -116,53 +261,628 @@ public class InfluxDBReader extends AbstractProcessor {
         return this.relationships;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(STATE_FILE).isSet() && !context.getProperty(QUERY).getValue().contains(IncrementalState.TIME_FILTER)) {
+            results.add(new ValidationResult.Builder().subject(QUERY.getDisplayName()).valid(false)
+                    .explanation("an incremental query needs " + IncrementalState.TIME_FILTER + " where its time condition goes").build());
+        }
+        boolean ranged = context.getProperty(TIME_SLICES).asInteger() > 1 || context.getProperty(RANGE_START).isSet();
+        if (ranged && !context.getProperty(QUERY).getValue().contains(IncrementalState.TIME_FILTER)) {
+            results.add(new ValidationResult.Builder().subject(QUERY.getDisplayName()).valid(false)
+                    .explanation("a query over a time range needs " + IncrementalState.TIME_FILTER + " where its time condition goes").build());
+        }
+        if (ranged && !context.getProperty(RANGE_START).isSet() && !context.getProperty(STATE_FILE).isSet()) {
+            results.add(new ValidationResult.Builder().subject(RANGE_START.getDisplayName()).valid(false)
+                    .explanation("time slices need a range start or an incremental state file").build());
+        }
+        if (context.getProperty(BATCH_SIZE).isSet() && (ranged || context.getProperty(STATE_FILE).isSet())) {
+            results.add(new ValidationResult.Builder().subject(BATCH_SIZE.getDisplayName()).valid(false)
+                    .explanation("queries for incoming flow files cannot poll incrementally or be sliced").build());
+        }
+        final Long[] range = new Long[2];
+        final PropertyDescriptor[] times = new PropertyDescriptor[]{RANGE_START, RANGE_END};
+        for (int i = 0; i < times.length; i++) {
+            if (context.getProperty(times[i]).isSet()) {
+                try {
+                    range[i] = IncrementalState.parseTime(context.getProperty(times[i]).getValue());
+                } catch (RuntimeException x) {
+                    results.add(new ValidationResult.Builder().subject(times[i].getDisplayName()).valid(false)
+                            .explanation("not an RFC3339 time").build());
+                }
+            }
+        }
+        if (range[0] != null && range[1] != null && range[1] <= range[0]) {
+            results.add(new ValidationResult.Builder().subject(RANGE_END.getDisplayName()).valid(false)
+                    .explanation("the range must end after it starts").build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void loadState(final ProcessContext context) throws IOException {
+        incrementalState = context.getProperty(STATE_FILE).isSet()
+                ? new IncrementalState(new File(context.getProperty(STATE_FILE).getValue()), context.getProperty(QUERY).getValue())
+                : null;
+        if (context.getProperty(TIME_SLICES).asInteger() > 1) {
+            slicePool = Executors.newFixedThreadPool(context.getProperty(SLICE_PARALLELISM).asInteger(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, InfluxDBReader.this + "-slice");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    @OnStopped
+    public void stopSlices() {
+        if (slicePool != null) {
+            slicePool.shutdownNow();
+            slicePool = null;
+        }
+    }
+
     @Override
     public void onTrigger(ProcessContext processContext, ProcessSession processSession) throws ProcessException {
         final ProcessorLog logger = getLogger();
         try {
             final InfluxDBServiceInterface influxdb = processContext.getProperty(INFLUXDB_SERVICE).asControllerService(InfluxDBServiceInterface.class);
             final Boolean pretty = Boolean.valueOf(processContext.getProperty(PRETTY).getValue());
-            InfluxDBServiceInterface.Results results = influxdb.query(processContext.getProperty(QUERY).getValue(), pretty);
-            for (final InfluxDBServiceInterface.ResultSeries rs : results.results) {
-                FlowFile out = processSession.create();
-                out = processSession.putAttribute(out, CoreAttributes.FILENAME.key(), processContext.getProperty(FILENAME).getValue());
-                // TODO the amount of boiler plate here is ludicrous ... how about some java 8 lambdas or better yet: a Scala API?
-                // TODO the only line that actually matters is the one (1) line inside the try catch
-                if (rs.error != null) {
-                    // write error to failure
-                    out = processSession.write(out, new StreamCallback() {
+            final OutputFormat format = OutputFormat.valueOf(processContext.getProperty(OUTPUT_FORMAT).getValue());
+            final boolean streamed = processContext.getProperty(CHUNK_SIZE).isSet() || format != OutputFormat.JSON;
+            final int chunkSize = processContext.getProperty(CHUNK_SIZE).isSet()
+                    ? processContext.getProperty(CHUNK_SIZE).asInteger() : DEFAULT_CHUNK_SIZE;
+            if (processContext.getProperty(BATCH_SIZE).isSet()) {
+                final int batchSize = processContext.getProperty(BATCH_SIZE).asInteger();
+                final int inFlight = streamed ? 1 : processContext.getProperty(BATCHES_IN_FLIGHT).asInteger();
+                final List<FlowFile> flowFiles = processSession.get(batchSize * inFlight);
+                if (flowFiles.isEmpty()) {
+                    return;
+                }
+                if (inFlight > 1) {
+                    queryFlowFilesAsync(processContext, processSession, influxdb, flowFiles, batchSize, pretty);
+                } else {
+                    final SeriesWriter writer = streamed ? new SeriesWriter(processSession, null, format, pretty) : null;
+                    queryFlowFiles(processContext, processSession, influxdb, flowFiles, streamed, chunkSize, format, pretty, writer);
+                }
+                return;
+            }
+            final IncrementalState state = incrementalState;
+            final List<String> queries = queries(processContext, state);
+            if (queries.isEmpty()) {
+                logger.debug("Nothing to query, the time range is empty");
+                return;
+            }
+            final SeriesWriter writer = streamed
+                    ? new SeriesWriter(processSession, processContext.getProperty(FILENAME).getValue(), format, pretty) : null;
+            final IncrementalState.Tracker tracker = state == null ? null : new IncrementalState.Tracker(writer);
+            final InfluxDBServiceInterface.SeriesHandler handler = tracker != null ? tracker : writer;
+            if (queries.size() > 1) {
+                querySlices(processContext, processSession, influxdb, queries, streamed, chunkSize, format, pretty, writer, handler, tracker);
+            } else if (streamed) {
+                influxdb.query(queries.get(0), chunkSize, format.epoch(), handler);
+                writer.finish();
+            } else {
+                writeResults(processSession, influxdb.query(queries.get(0), pretty).results, pretty, tracker,
+                        Collections.<String, String>emptyMap(), processContext.getProperty(FILENAME).getValue(), null);
+            }
+            if (tracker != null) {
+                // only move the window on once the results are safely in the flow
+                processSession.commit();
+                state.advance(tracker.getNewest());
+            }
+        } catch (Exception x) {
+            throw new ProcessException("Error querying influxdb",x);
+        }
+
+    }
+
+    /**
+     * @return the query to run, or one query per time slice, with the time filter filled in; none when the time range
+     * is empty, e.g. when it starts in the future. A range shorter than the number of slices in nanoseconds is split
+     * into one slice per nanosecond.
+     */
+    private List<String> queries(final ProcessContext processContext, final IncrementalState state) {
+        final String query = processContext.getProperty(QUERY).getValue();
+        final long overlap = processContext.getProperty(OVERLAP).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long lookback = processContext.getProperty(INITIAL_LOOKBACK).asTimePeriod(TimeUnit.NANOSECONDS);
+        final int slices = processContext.getProperty(TIME_SLICES).asInteger();
+        if (slices == 1 && !processContext.getProperty(RANGE_START).isSet()) {
+            return Collections.singletonList(state != null ? state.apply(overlap, lookback) : query);
+        }
+        // the incremental window starts right after what was seen, a configured range includes its start
+        final long start = state != null ? state.start(overlap, lookback) + 1
+                : IncrementalState.parseTime(processContext.getProperty(RANGE_START).getValue());
+        final long end = processContext.getProperty(RANGE_END).isSet()
+                ? IncrementalState.parseTime(processContext.getProperty(RANGE_END).getValue())
+                : TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (end <= start) {
+            return Collections.emptyList();
+        }
+        final int count = (int) Math.min(slices, end - start);
+        final long step = (end - start) / count;
+        final List<String> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long from = start + step * i;
+            long to = i == count - 1 ? end : from + step;
+            queries.add(query.replace(IncrementalState.TIME_FILTER, IncrementalState.rangeFilter(from, to)));
+        }
+        return queries;
+    }
+
+    /**
+     * Run the slice queries concurrently, at most the slice parallelism at a time, and emit their results in slice
+     * order. A slice result is held in memory until all slices before it have been emitted.
+     */
+    private void querySlices(final ProcessContext processContext, final ProcessSession processSession,
+                             final InfluxDBServiceInterface influxdb, final List<String> queries, final boolean streamed,
+                             final int chunkSize, final OutputFormat format, final boolean pretty, final SeriesWriter writer,
+                             final InfluxDBServiceInterface.SeriesHandler handler, final IncrementalState.Tracker tracker)
+            throws Exception {
+        final ExecutorService pool = slicePool;
+        final int parallelism = processContext.getProperty(SLICE_PARALLELISM).asInteger();
+        final LinkedList<Future<Object>> pending = new LinkedList<>();
+        int next = 0;
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                while (next < queries.size() && next < i + parallelism) {
+                    final String query = queries.get(next++);
+                    pending.add(pool.submit(new Callable<Object>() {
                         @Override
-                        public void process(final InputStream rawIn, final OutputStream out) throws IOException {
-                            try (final InputStream in = new BufferedInputStream(rawIn)) {
-                                out.write(rs.error.getBytes());
-                            } catch (final Exception e) {
-                                throw new IOException(e);
+                        public Object call() throws Exception {
+                            if (!streamed) {
+                                return influxdb.query(query, pretty);
                             }
+                            SliceResult result = new SliceResult();
+                            influxdb.query(query, chunkSize, format.epoch(), result);
+                            return result;
                         }
-                    });
-                    processSession.transfer(out, FAILURE);
+                    }));
+                }
+                Object result = pending.removeFirst().get();
+                Map<String, String> attributes = new HashMap<>();
+                attributes.put("influxdb.slice", String.valueOf(i));
+                attributes.put("influxdb.slice.count", String.valueOf(queries.size()));
+                if (streamed) {
+                    writer.setAttributes(attributes);
+                    ((SliceResult) result).replay(handler);
+                    writer.finish();
                 } else {
-                    // write query result to success
-                    out = processSession.putAttribute(out, "content-type", "application/json");
-                    out = processSession.write(out, new StreamCallback() {
-                        @Override
-                        public void process(final InputStream rawIn, final OutputStream out) throws IOException {
-                            try {
-                                if (pretty)
-                                    out.write(JsonUtils.toPrettyJsonString(rs).getBytes());
-                                else
-                                    out.write(JsonUtils.toJsonString(rs).getBytes());
-                            } catch (final Exception e) {
-                                throw new IOException(e);
+                    writeResults(processSession, ((InfluxDBServiceInterface.Results) result).results, pretty, tracker, attributes,
+                            processContext.getProperty(FILENAME).getValue(), null);
+                }
+            }
+        } finally {
+            for (Future<Object> slice : pending) {
+                slice.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The queries of several flow files combined into one multi-statement request
+     */
+    private static class QueryBatch {
+        final List<FlowFile> flowFiles = new ArrayList<>();
+        final List<String> filenames = new ArrayList<>();
+        // index of the first statement of each flow file's query, and the total number of statements last
+        final int[] first;
+        final StringBuilder query = new StringBuilder();
+
+        QueryBatch(int size) {
+            first = new int[size + 1];
+        }
+
+        int size() {
+            return flowFiles.size();
+        }
+    }
+
+    /**
+     * @return the combined queries of the flow files, or null when none of them has a query; flow files with an
+     * empty query are sent to failure
+     */
+    private QueryBatch prepareBatch(final ProcessContext processContext, final ProcessSession processSession,
+                                    final List<FlowFile> flowFiles) {
+        final QueryBatch batch = new QueryBatch(flowFiles.size());
+        for (FlowFile flowFile : flowFiles) {
+            String query = processContext.getProperty(QUERY).evaluateAttributeExpressions(flowFile).getValue().trim();
+            while (query.endsWith(";")) {
+                query = query.substring(0, query.length() - 1).trim();
+            }
+            int statements = countStatements(query);
+            if (statements == 0) {
+                fail(processSession, flowFile, "empty query");
+                continue;
+            }
+            batch.first[batch.size() + 1] = batch.first[batch.size()] + statements;
+            batch.flowFiles.add(flowFile);
+            batch.filenames.add(processContext.getProperty(FILENAME).evaluateAttributeExpressions(flowFile).getValue());
+            if (batch.query.length() > 0) {
+                batch.query.append(";\n");
+            }
+            batch.query.append(query);
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
+    /**
+     * Run the queries of the flow files as one multi-statement request and send every result out as a child of the
+     * flow file whose query it belongs to. When the request fails, e.g. because one of the queries does not parse,
+     * the flow files are queried one by one, so only the failing ones go to failure.
+     */
+    private void queryFlowFiles(final ProcessContext processContext, final ProcessSession processSession,
+                                final InfluxDBServiceInterface influxdb, final List<FlowFile> flowFiles, final boolean streamed,
+                                final int chunkSize, final OutputFormat format, final boolean pretty, final SeriesWriter writer) {
+        final QueryBatch batch = prepareBatch(processContext, processSession, flowFiles);
+        if (batch == null) {
+            return;
+        }
+        try {
+            if (streamed) {
+                // results in statement order, see InfluxDBServiceInterface#query
+                influxdb.query(batch.query.toString(), batch.first[batch.size()] > 1 ? 0 : chunkSize, format.epoch(),
+                        new BatchHandler(writer, batch.flowFiles, batch.filenames, batch.first));
+                writer.finish();
+            } else {
+                writeBatch(processSession, batch, influxdb.query(batch.query.toString(), pretty), pretty);
+            }
+        } catch (Exception x) {
+            if (writer != null) {
+                writer.discard();
+            }
+            retry(processContext, processSession, influxdb, batch, x, streamed, chunkSize, format, pretty, writer);
+            return;
+        }
+        processSession.transfer(batch.flowFiles, ORIGINAL);
+    }
+
+    /**
+     * Like {@link #queryFlowFiles} for JSON results, but runs a request per batch of flow files with all requests
+     * in flight at the same time. Results are written on the calling thread, batch by batch, as they come in.
+     */
+    private void queryFlowFilesAsync(final ProcessContext processContext, final ProcessSession processSession,
+                                     final InfluxDBServiceInterface influxdb, final List<FlowFile> flowFiles,
+                                     final int batchSize, final boolean pretty) {
+        final List<QueryBatch> batches = new ArrayList<>();
+        final List<Future<InfluxDBServiceInterface.Results>> queries = new ArrayList<>();
+        for (int from = 0; from < flowFiles.size(); from += batchSize) {
+            QueryBatch batch = prepareBatch(processContext, processSession,
+                    flowFiles.subList(from, Math.min(from + batchSize, flowFiles.size())));
+            if (batch != null) {
+                batches.add(batch);
+                queries.add(influxdb.queryAsync(batch.query.toString(), pretty, null));
+            }
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            final QueryBatch batch = batches.get(i);
+            try {
+                writeBatch(processSession, batch, queries.get(i).get(), pretty);
+            } catch (ExecutionException x) {
+                retry(processContext, processSession, influxdb, batch, x.getCause() instanceof Exception
+                        ? (Exception) x.getCause() : x, false, 0, OutputFormat.JSON, pretty, null);
+                continue;
+            } catch (InterruptedException x) {
+                // being stopped, do not query the flow files one by one
+                Thread.currentThread().interrupt();
+                for (FlowFile flowFile : batch.flowFiles) {
+                    fail(processSession, flowFile, "Interrupted waiting for the query result");
+                }
+                continue;
+            } catch (Exception x) {
+                retry(processContext, processSession, influxdb, batch, x, false, 0, OutputFormat.JSON, pretty, null);
+                continue;
+            }
+            processSession.transfer(batch.flowFiles, ORIGINAL);
+        }
+    }
+
+    /**
+     * Write the results of a batch, each statement's result as a child of the flow file it was queried for
+     */
+    private void writeBatch(final ProcessSession processSession, final QueryBatch batch,
+                            final InfluxDBServiceInterface.Results response, final boolean pretty) {
+        final List<InfluxDBServiceInterface.ResultSeries> results = response.results;
+        if (batch.size() > 1 && results.size() != batch.first[batch.size()]) {
+            throw new IllegalArgumentException("Expected " + batch.first[batch.size()] + " results, got " + results.size());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            List<InfluxDBServiceInterface.ResultSeries> own = batch.size() == 1 ? results
+                    : results.subList(batch.first[i], batch.first[i + 1]);
+            writeResults(processSession, own, pretty, null, Collections.<String, String>emptyMap(),
+                    batch.filenames.get(i), batch.flowFiles.get(i));
+        }
+    }
+
+    /**
+     * Handle a failed batch: a single flow file goes to failure, the flow files of a larger batch are queried one by one
+     * when InfluxDB rejected the request or its results do not match the queries, so only those with bad queries fail.
+     * Any other failure, e.g. InfluxDB being unavailable or the credentials being wrong, fails every flow file.
+     */
+    private void retry(final ProcessContext processContext, final ProcessSession processSession,
+                       final InfluxDBServiceInterface influxdb, final QueryBatch batch, final Exception x,
+                       final boolean streamed, final int chunkSize, final OutputFormat format, final boolean pretty,
+                       final SeriesWriter writer) {
+        if (batch.size() == 1) {
+            getLogger().error("Query for {} failed", new Object[]{batch.flowFiles.get(0)}, x);
+            fail(processSession, batch.flowFiles.get(0), String.valueOf(x.getMessage()));
+            return;
+        }
+        if (!(x instanceof IllegalArgumentException)) {
+            getLogger().error("Batched query for {} flow files failed", new Object[]{batch.size()}, x);
+            for (FlowFile flowFile : batch.flowFiles) {
+                fail(processSession, flowFile, String.valueOf(x.getMessage()));
+            }
+            return;
+        }
+        getLogger().warn("Batched query for {} flow files failed, querying them one by one: {}",
+                new Object[]{batch.size(), x.getMessage()});
+        for (FlowFile flowFile : batch.flowFiles) {
+            queryFlowFiles(processContext, processSession, influxdb, Collections.singletonList(flowFile),
+                    streamed, chunkSize, format, pretty, writer);
+        }
+    }
+
+    private static void fail(ProcessSession processSession, FlowFile flowFile, String error) {
+        flowFile = processSession.putAttribute(flowFile, "influxdb.error", error);
+        processSession.transfer(flowFile, FAILURE);
+    }
+
+    /**
+     * @return number of statements in the query, not counting semicolons inside quotes
+     */
+    static int countStatements(String query) {
+        return QueryCache.statements(query).size();
+    }
+
+    /**
+     * Hands the series of a multi-statement request to the writer as children of the flow file they were queried for
+     */
+    private static class BatchHandler implements InfluxDBServiceInterface.SeriesHandler {
+        private final SeriesWriter writer;
+        private final List<FlowFile> flowFiles;
+        private final List<String> filenames;
+        private final int[] first;
+
+        BatchHandler(SeriesWriter writer, List<FlowFile> flowFiles, List<String> filenames, int[] first) {
+            this.writer = writer;
+            this.flowFiles = flowFiles;
+            this.filenames = filenames;
+            this.first = first;
+        }
+
+        private int origin(int statement) {
+            if (flowFiles.size() == 1) {
+                return 0;
+            }
+            for (int i = 0; i < flowFiles.size(); i++) {
+                if (statement >= first[i] && statement < first[i + 1]) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Result for unexpected statement " + statement);
+        }
+
+        @Override
+        public void series(int statement, Series series, boolean partial) throws IOException {
+            int i = origin(statement);
+            writer.setSource(flowFiles.get(i), filenames.get(i));
+            writer.series(statement - first[i], series, partial);
+        }
+
+        @Override
+        public void error(int statement, String error) throws IOException {
+            if (statement < 0) {
+                // the whole request failed
+                throw new IllegalArgumentException(error);
+            }
+            int i = origin(statement);
+            writer.setSource(flowFiles.get(i), filenames.get(i));
+            writer.error(statement - first[i], error);
+        }
+    }
+
+    /**
+     * Holds the series of a slice until it is its turn to be written
+     */
+    private static class SliceResult implements InfluxDBServiceInterface.SeriesHandler {
+        private final List<Object[]> events = new ArrayList<>();
+
+        @Override
+        public void series(int statement, Series series, boolean partial) {
+            events.add(new Object[]{statement, series, partial});
+        }
+
+        @Override
+        public void error(int statement, String error) {
+            events.add(new Object[]{statement, error});
+        }
+
+        void replay(InfluxDBServiceInterface.SeriesHandler handler) throws IOException {
+            for (Object[] event : events) {
+                if (event.length == 3) {
+                    handler.series((Integer) event[0], (Series) event[1], (Boolean) event[2]);
+                } else {
+                    handler.error((Integer) event[0], (String) event[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write each statement's result to its own flow file, in the InfluxDB JSON result shape
+     * @param processContext
+     * @param processSession
+     * @param results
+     * @param pretty
+     * @param tracker when polling incrementally, tracks the newest timestamp written
+     * @param attributes added to every flow file
+     * @param filename of every flow file
+     * @param parent the flow file the results were queried for, or null
+     */
+    private void writeResults(final ProcessSession processSession,
+                              final List<InfluxDBServiceInterface.ResultSeries> results, final boolean pretty,
+                              final IncrementalState.Tracker tracker, final Map<String, String> attributes,
+                              final String filename, final FlowFile parent) {
+        for (final InfluxDBServiceInterface.ResultSeries rs : results) {
+            FlowFile out = parent == null ? processSession.create() : processSession.create(parent);
+            out = processSession.putAllAttributes(out, attributes);
+            out = processSession.putAttribute(out, CoreAttributes.FILENAME.key(), filename);
+            // TODO the amount of boiler plate here is ludicrous ... how about some java 8 lambdas or better yet: a Scala API?
+            // TODO the only line that actually matters is the one (1) line inside the try catch
+            if (rs.error != null) {
+                // write error to failure
+                out = processSession.write(out, new StreamCallback() {
+                    @Override
+                    public void process(final InputStream rawIn, final OutputStream out) throws IOException {
+                        try (final InputStream in = new BufferedInputStream(rawIn)) {
+                            out.write(rs.error.getBytes(StandardCharsets.UTF_8));
+                        } catch (final Exception e) {
+                            throw new IOException(e);
+                        }
+                    }
+                });
+                processSession.transfer(out, FAILURE);
+            } else {
+                // write query result to success
+                out = processSession.putAttribute(out, "content-type", "application/json");
+                out = processSession.write(out, new StreamCallback() {
+                    @Override
+                    public void process(final InputStream rawIn, final OutputStream out) throws IOException {
+                        try {
+                            // straight to the content as UTF-8, without the whole document as a string in between
+                            JsonGenerator json = OutputFormat.generator(out);
+                            if (pretty) {
+                                json.useDefaultPrettyPrinter();
                             }
+                            json.writeObject(rs);
+                            json.flush();
+                        } catch (final Exception e) {
+                            throw new IOException(e);
                         }
-                    });
-                    processSession.transfer(out, SUCCESS);
+                    }
+                });
+                processSession.transfer(out, SUCCESS);
+                if (tracker != null && rs.series != null) {
+                    for (Series series : rs.series) {
+                        tracker.seen(series);
+                    }
                 }
             }
-        } catch (Exception x) {
-            throw new ProcessException("Error querying influxdb",x);
         }
+    }
+
+    /**
+     * Writes every series to its own flow file as it is parsed. A series InfluxDB splits over several chunks
+     * is appended to the same flow file, chunk by chunk, so only one chunk is ever held in memory.
+     * The flow files are only transferred by finish(), once the response was read completely, so a request that
+     * fails halfway can be discarded and retried without sending out any of its results twice.
+     */
+    private static class SeriesWriter implements InfluxDBServiceInterface.SeriesHandler {
+        private final ProcessSession session;
+        private String filename;
+        private final OutputFormat format;
+        private final boolean pretty;
+        private Map<String, String> attributes = Collections.emptyMap();
+        private FlowFile parent;
+        private FlowFile open;
+        // completed flow files and where they go, transferred by finish()
+        private final List<FlowFile> written = new ArrayList<>();
+        private final List<Relationship> writtenTo = new ArrayList<>();
 
+        SeriesWriter(ProcessSession session, String filename, OutputFormat format, boolean pretty) {
+            this.session = session;
+            this.filename = filename;
+            this.format = format;
+            this.pretty = pretty;
+        }
+
+        /**
+         * @param attributes added to every flow file created from now on
+         */
+        void setAttributes(Map<String, String> attributes) {
+            this.attributes = attributes;
+        }
+
+        /**
+         * @param parent the flow file the series written from now on were queried for
+         * @param filename of the flow files written from now on
+         */
+        void setSource(FlowFile parent, String filename) {
+            this.parent = parent;
+            this.filename = filename;
+        }
+
+        /**
+         * Remove everything written since the last finish(), so a failed request can be retried
+         */
+        void discard() {
+            if (open != null) {
+                session.remove(open);
+                open = null;
+            }
+            session.remove(written);
+            written.clear();
+            writtenTo.clear();
+        }
+
+        @Override
+        public void series(final int statement, final Series series, final boolean partial) throws IOException {
+            final boolean first = open == null;
+            if (first) {
+                open = parent == null ? session.create() : session.create(parent);
+                open = session.putAllAttributes(open, attributes);
+                open = session.putAttribute(open, CoreAttributes.FILENAME.key(), filename);
+                open = session.putAttribute(open, "content-type", format.contentType());
+                open = session.putAttribute(open, "influxdb.statement", String.valueOf(statement));
+                if (series.name != null) {
+                    open = session.putAttribute(open, "influxdb.series", series.name);
+                }
+            }
+            open = session.append(open, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream out) throws IOException {
+                    format.write(series, first, !partial, pretty, out);
+                }
+            });
+            if (!partial) {
+                written.add(open);
+                writtenTo.add(SUCCESS);
+                open = null;
+            }
+        }
+
+        /**
+         * Close a series the response ended in the middle of, and transfer everything written
+         */
+        void finish() throws IOException {
+            if (open != null) {
+                series(-1, new Series(), false);
+            }
+            for (int i = 0; i < written.size(); i++) {
+                session.transfer(written.get(i), writtenTo.get(i));
+            }
+            written.clear();
+            writtenTo.clear();
+        }
+
+        @Override
+        public void error(int statement, final String error) throws IOException {
+            FlowFile out = parent == null ? session.create() : session.create(parent);
+            out = session.putAllAttributes(out, attributes);
+            out = session.putAttribute(out, CoreAttributes.FILENAME.key(), filename);
+            out = session.putAttribute(out, "influxdb.statement", String.valueOf(statement));
+            out = session.write(out, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream out) throws IOException {
+                    out.write(error.getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            written.add(out);
+            writtenTo.add(FAILURE);
+        }
     }
 }
@@ -19,29 +19,65 @@ package org.apache.nifi.influxdb;
 
 import com.bazaarvoice.jolt.JsonUtils;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
 import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
 import com.sun.jersey.core.util.MultivaluedMapImpl;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.stream.io.ByteArrayOutputStream;
+import org.apache.nifi.stream.io.ByteCountingOutputStream;
+import org.apache.nifi.stream.io.GZIPOutputStream;
+import org.apache.nifi.stream.io.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 @Tags({"InfluxDB", "metrics", "time-series"})
 @CapabilityDescription("Manages connections to an InfluxDB (v. 0.9) time-series database")
@@ -49,21 +85,40 @@ import java.util.concurrent.TimeUnit;
 public class InfluxDBService extends AbstractControllerService implements InfluxDBServiceInterface {
 
     enum Precision {
-        Nanos   {String paramValue() {return "n";}},
-        Micros  {String paramValue() {return "u";}},
-        Millis  {String paramValue() {return "ms";}},
-        Seconds {String paramValue() {return "s";}},
-        Minutes {String paramValue() {return "m";}},
-        Hours   {String paramValue() {return "h";}};
+        Nanos   {String paramValue() {return "n";}  TimeUnit unit() {return TimeUnit.NANOSECONDS;}},
+        Micros  {String paramValue() {return "u";}  TimeUnit unit() {return TimeUnit.MICROSECONDS;}},
+        Millis  {String paramValue() {return "ms";} TimeUnit unit() {return TimeUnit.MILLISECONDS;}},
+        Seconds {String paramValue() {return "s";}  TimeUnit unit() {return TimeUnit.SECONDS;}},
+        Minutes {String paramValue() {return "m";}  TimeUnit unit() {return TimeUnit.MINUTES;}},
+        Hours   {String paramValue() {return "h";}  TimeUnit unit() {return TimeUnit.HOURS;}};
 
         abstract String paramValue();
+        abstract TimeUnit unit();
+
+        long fromMillis(long millis) {
+            return unit().convert(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    enum WriteConsistency {
+        All     {int required(int hosts) {return hosts;}},
+        Quorum  {int required(int hosts) {return hosts / 2 + 1;}};
+
+        abstract int required(int hosts);
     }
 
     private static final Logger logger = LoggerFactory.getLogger(InfluxDBService.class);
 
+    // rows per chunk InfluxDB sends for a columnar query
+    private static final int COLUMNAR_CHUNK_SIZE = 10000;
+
+    // initial size of the buffer holding a slice of streamed line protocol
+    private static final int MAX_SLICE_BUFFER = 1024 * 1024;
+
     public static final PropertyDescriptor INFLUXDB_HOST = new PropertyDescriptor.Builder()
             .name("INFLUXDB_HOST").displayName("InfluxDB Host")
-            .description("Hostname of the InfluxDB database server")
+            .description("Hostname of the InfluxDB database server, or a comma separated list of host or host:port of " +
+                    "replicas. Queries go to the healthy replica with the fewest outstanding requests, writes go to all of them")
             .required(true)
             .expressionLanguageSupported(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
@@ -86,6 +141,30 @@ public class InfluxDBService extends AbstractControllerService implements Influx
             .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("READ_TIMEOUT").displayName("Read Timeout")
+            .description("How long to wait for data on an open connection to InfluxDB before giving up")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("MAX_CONNECTIONS").displayName("Max Connections")
+            .description("Maximum number of pooled keep-alive connections to InfluxDB, shared by all processors using this service")
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("IDLE_TIMEOUT").displayName("Idle Connection Timeout")
+            .description("How long a pooled connection may stay unused before it is closed")
+            .required(true)
+            .defaultValue("60 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor USERNAME = new PropertyDescriptor.Builder()
             .name("USERNAME").displayName("Username")
             .description("DB Username")
@@ -122,21 +201,268 @@ public class InfluxDBService extends AbstractControllerService implements Influx
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor BUFFERED_WRITES = new PropertyDescriptor.Builder()
+            .name("BUFFERED_WRITES").displayName("Buffered Writes")
+            .description("Whether writes are queued in memory and sent in batches by background threads instead of " +
+                    "being sent to InfluxDB on the calling thread. A batch that fails is dropped and its error is " +
+                    "reported by the next write or flush")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BUFFER_CAPACITY = new PropertyDescriptor.Builder()
+            .name("BUFFER_CAPACITY").displayName("Write Buffer Capacity")
+            .description("Only applicable to buffered writes; maximum number of points waiting to be sent")
+            .required(true)
+            .defaultValue("100000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BUFFER_FULL_STRATEGY = new PropertyDescriptor.Builder()
+            .name("BUFFER_FULL_STRATEGY").displayName("Write Buffer Full Strategy")
+            .description("Only applicable to buffered writes; whether a write blocks or fails when the write buffer is full")
+            .required(true)
+            .defaultValue(WriteBuffer.FullStrategy.Block.name())
+            .allowableValues(WriteBuffer.FullStrategy.values())
+            .build();
+
+    public static final PropertyDescriptor FLUSH_MAX_POINTS = new PropertyDescriptor.Builder()
+            .name("FLUSH_MAX_POINTS").displayName("Flush Max Points")
+            .description("Only applicable to buffered writes; maximum number of points sent in a single request")
+            .required(true)
+            .defaultValue("5000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FLUSH_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("FLUSH_MAX_SIZE").displayName("Flush Max Size")
+            .description("Only applicable to buffered writes; maximum size of a single request")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FLUSH_LINGER = new PropertyDescriptor.Builder()
+            .name("FLUSH_LINGER").displayName("Flush Linger Time")
+            .description("Only applicable to buffered writes; how long to wait for more points before sending a partial batch")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FLUSH_THREADS = new PropertyDescriptor.Builder()
+            .name("FLUSH_THREADS").displayName("Flush Threads")
+            .description("Only applicable to buffered writes; number of background threads sending batches to InfluxDB")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor GZIP = new PropertyDescriptor.Builder()
+            .name("GZIP").displayName("Gzip Compression")
+            .description("Whether to gzip write requests and accept gzip encoded query responses")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_LEVEL = new PropertyDescriptor.Builder()
+            .name("COMPRESSION_LEVEL").displayName("Compression Level")
+            .description("Only applicable to gzip compression; 1 is fastest, 9 gives the smallest requests")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.createLongValidator(1, 9, true))
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("COMPRESSION_THRESHOLD").displayName("Compression Threshold")
+            .description("Only applicable to gzip compression; smaller write requests are sent uncompressed. " +
+                    "Line protocol content is written one request per slice, so this applies to each slice")
+            .required(true)
+            .defaultValue("1 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("MAX_IN_FLIGHT").displayName("Max In-Flight Writes")
+            .description("Number of write requests that may be in flight at the same time. With more than 1, every write " +
+                    "is split on line boundaries into up to this many requests that are sent by background threads at once, " +
+                    "and the calling thread waits until all of them were sent; make sure Max Connections allows for this " +
+                    "many concurrent requests. Streamed writes are always sent on the calling thread")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PRESERVE_SERIES_ORDER = new PropertyDescriptor.Builder()
+            .name("PRESERVE_SERIES_ORDER").displayName("Preserve Series Order")
+            .description("Only applicable to more than 1 in-flight write; whether points of the same series " +
+                    "(measurement and tags) are always written in the order they were written to this service")
+            .required(true)
+            .defaultValue("true")
+            .allowableValues("true", "false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("SPOOL_DIRECTORY").displayName("Spool Directory")
+            .description("[optional] directory where writes are spooled while InfluxDB is unavailable; they are replayed " +
+                    "in order once it is back. Without a spool directory such writes fail")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("SPOOL_MAX_SIZE").displayName("Spool Max Size")
+            .description("Only applicable with a spool directory; writes fail once the spool holds this much")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPOOL_MAX_RETRY_INTERVAL = new PropertyDescriptor.Builder()
+            .name("SPOOL_MAX_RETRY_INTERVAL").displayName("Spool Max Retry Interval")
+            .description("Only applicable with a spool directory; replay is retried with exponential backoff up to this interval")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ASYNC_THREADS = new PropertyDescriptor.Builder()
+            .name("ASYNC_THREADS").displayName("Async Threads")
+            .description("Number of threads running asynchronous queries and writes, shared by all processors using this service; " +
+                    "make sure Max Connections allows for this many concurrent requests")
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor QUERY_CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("QUERY_CACHE_TTL").displayName("Query Cache TTL")
+            .description("[optional] how long the results of SELECT and SHOW queries are cached; identical queries in that time, " +
+                    "also from other processors, are answered from the cache and concurrent identical queries share one request. " +
+                    "Note that times relative to now() are evaluated when the query is first run. Without a TTL nothing is cached")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor QUERY_CACHE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("QUERY_CACHE_MAX_SIZE").displayName("Query Cache Max Size")
+            .description("Only applicable with a query cache TTL; the least recently used results are evicted once the cache holds this much")
+            .required(true)
+            .defaultValue("10 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WRITE_CONSISTENCY = new PropertyDescriptor.Builder()
+            .name("WRITE_CONSISTENCY").displayName("Write Consistency")
+            .description("Only applicable to more than 1 host; whether a write succeeds once all hosts or a majority of them " +
+                    "accepted it. Writes are sent to all hosts concurrently either way")
+            .required(true)
+            .defaultValue(WriteConsistency.All.name())
+            .allowableValues(WriteConsistency.values())
+            .build();
+
+    public static final PropertyDescriptor HOST_RETRY_INTERVAL = new PropertyDescriptor.Builder()
+            .name("HOST_RETRY_INTERVAL").displayName("Host Retry Interval")
+            .description("Only applicable to more than 1 host; how long a host that failed is skipped by queries before it is tried again")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRANSPORT = new PropertyDescriptor.Builder()
+            .name("TRANSPORT").displayName("Write Transport")
+            .description("How writes are sent: HTTP requests, or fire and forget UDP datagrams to the UDP input of InfluxDB. " +
+                    "UDP writes are never acknowledged, lost or rejected lines go unnoticed, and the database and precision " +
+                    "are those configured for the UDP input. Queries always use HTTP")
+            .required(true)
+            .defaultValue("HTTP")
+            .allowableValues("HTTP", "UDP")
+            .build();
+
+    public static final PropertyDescriptor UDP_PORT = new PropertyDescriptor.Builder()
+            .name("UDP_PORT").displayName("UDP Port")
+            .description("Only applicable to UDP writes; port of the UDP input on every InfluxDB host")
+            .required(true)
+            .defaultValue("8089")
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor UDP_PAYLOAD_SIZE = new PropertyDescriptor.Builder()
+            .name("UDP_PAYLOAD_SIZE").displayName("UDP Payload Size")
+            .description("Only applicable to UDP writes; maximum bytes of line protocol per datagram. Keep it below the " +
+                    "network MTU to avoid fragmentation; lines longer than this are dropped")
+            .required(true)
+            .defaultValue("1400")
+            .addValidator(StandardValidators.createLongValidator(1, UdpSender.MAX_DATAGRAM, true))
+            .build();
+
     private static final List<PropertyDescriptor> properties;
 
     static {
         List<PropertyDescriptor> props = new ArrayList<>();
         props.add(INFLUXDB_HOST);
         props.add(INFLUXDB_PORT);
+        props.add(WRITE_CONSISTENCY);
+        props.add(HOST_RETRY_INTERVAL);
+        props.add(TRANSPORT);
+        props.add(UDP_PORT);
+        props.add(UDP_PAYLOAD_SIZE);
         props.add(CONNECTION_TIMEOUT);
+        props.add(READ_TIMEOUT);
+        props.add(MAX_CONNECTIONS);
+        props.add(IDLE_TIMEOUT);
         props.add(USERNAME);
         props.add(PASSWORD);
         props.add(DATABASE_NAME);
         props.add(RETENTION_POLICY);
         props.add(PRECISION);
+        props.add(BUFFERED_WRITES);
+        props.add(BUFFER_CAPACITY);
+        props.add(BUFFER_FULL_STRATEGY);
+        props.add(FLUSH_MAX_POINTS);
+        props.add(FLUSH_MAX_SIZE);
+        props.add(FLUSH_LINGER);
+        props.add(FLUSH_THREADS);
+        props.add(MAX_IN_FLIGHT);
+        props.add(PRESERVE_SERIES_ORDER);
+        props.add(SPOOL_DIRECTORY);
+        props.add(SPOOL_MAX_SIZE);
+        props.add(SPOOL_MAX_RETRY_INTERVAL);
+        props.add(ASYNC_THREADS);
+        props.add(QUERY_CACHE_TTL);
+        props.add(QUERY_CACHE_MAX_SIZE);
+        props.add(GZIP);
+        props.add(COMPRESSION_LEVEL);
+        props.add(COMPRESSION_THRESHOLD);
         properties = Collections.unmodifiableList(props);
     }
 
+    // shared by all threads of all processors using this service, (re)created when enabled
+    private volatile Client client;
+    private volatile Endpoints endpoints;
+    private volatile WriteConsistency writeConsistency = WriteConsistency.All;
+    private volatile ExecutorService fanOut;
+    private volatile UdpSender udp;
+    private volatile ExecutorService asyncPool;
+    private volatile ThreadSafeClientConnManager connectionManager;
+    private volatile ScheduledExecutorService idleConnectionReaper;
+    private volatile WriteBuffer writeBuffer;
+    private volatile WritePipeline writePipeline;
+    private volatile WriteSpool writeSpool;
+    private volatile QueryCache queryCache;
+    private volatile Precision precision = Precision.Nanos;
+    private volatile boolean gzip;
+    private volatile int compressionLevel;
+    private volatile long compressionThreshold;
+    // write throughput, before and after compression
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
@@ -149,103 +475,900 @@ public class InfluxDBService extends AbstractControllerService implements Influx
 
     @OnEnabled
     public void init(final ConfigurationContext context) throws InitializationException {
+        precision = context.getProperty(PRECISION).isSet()
+                ? Precision.valueOf(context.getProperty(PRECISION).getValue()) : Precision.Nanos;
+        gzip = context.getProperty(GZIP).asBoolean();
+        compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
+        compressionThreshold = context.getProperty(COMPRESSION_THRESHOLD).asDataSize(DataUnit.B).longValue();
+        bytesWritten.set(0);
+        bytesSent.set(0);
+        endpoints = new Endpoints(context.getProperty(INFLUXDB_HOST).getValue(), context.getProperty(INFLUXDB_PORT).getValue(),
+                context.getProperty(HOST_RETRY_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+        writeConsistency = WriteConsistency.valueOf(context.getProperty(WRITE_CONSISTENCY).getValue());
+        createClient(context);
+        if ("UDP".equals(context.getProperty(TRANSPORT).getValue())) {
+            List<InetSocketAddress> targets = new ArrayList<>();
+            for (Endpoints.Endpoint endpoint : endpoints.all()) {
+                targets.add(new InetSocketAddress(endpoint.host, context.getProperty(UDP_PORT).asInteger()));
+            }
+            try {
+                udp = new UdpSender(targets, context.getProperty(UDP_PAYLOAD_SIZE).asInteger());
+            } catch (IOException x) {
+                shutdown();
+                throw new InitializationException("Could not open UDP channel:", x);
+            }
+        }
         // test the connection
         try {
             Results measurements = query("SHOW MEASUREMENTS", false);
             logger.debug("Connect test returned " + measurements);
         } catch (Exception x) {
+            shutdown();
             throw new InitializationException("Could not connect to InfluxDB:", x);
         }
+        asyncPool = Executors.newFixedThreadPool(context.getProperty(ASYNC_THREADS).asInteger(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, InfluxDBService.this + "-async");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (context.getProperty(QUERY_CACHE_TTL).isSet()) {
+            queryCache = new QueryCache(context.getProperty(QUERY_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+                    context.getProperty(QUERY_CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue());
+        }
+        if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+            try {
+                writeSpool = new WriteSpool(toString(), new File(context.getProperty(SPOOL_DIRECTORY).getValue()),
+                        context.getProperty(SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue(),
+                        context.getProperty(SPOOL_MAX_RETRY_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+                        new WriteSpool.Sink() {
+                            @Override
+                            public void send(byte[] body, int length) {
+                                // never spool again while replaying, unavailability makes the spool retry instead
+                                post(body, 0, length, null);
+                            }
+                        });
+            } catch (IOException x) {
+                shutdown();
+                throw new InitializationException("Could not open write spool:", x);
+            }
+        }
+        int maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+        if (maxInFlight > 1) {
+            writePipeline = new WritePipeline(toString(), new WritePipeline.Sink() {
+                @Override
+                public void send(byte[] body, int offset, int length) {
+                    post(body, offset, length, writeSpool);
+                }
+            }, maxInFlight, context.getProperty(PRESERVE_SERIES_ORDER).asBoolean());
+        }
+        if (context.getProperty(BUFFERED_WRITES).asBoolean()) {
+            writeBuffer = new WriteBuffer(toString(), new WriteBuffer.Sink() {
+                        @Override
+                        public void send(byte[] body, int length, int points) {
+                            dispatch(body, length);
+                        }
+                    },
+                    context.getProperty(BUFFER_CAPACITY).asInteger(),
+                    context.getProperty(FLUSH_MAX_POINTS).asInteger(),
+                    context.getProperty(FLUSH_MAX_SIZE).asDataSize(DataUnit.B).intValue(),
+                    context.getProperty(FLUSH_LINGER).asTimePeriod(TimeUnit.MILLISECONDS),
+                    context.getProperty(FLUSH_THREADS).asInteger(),
+                    WriteBuffer.FullStrategy.valueOf(context.getProperty(BUFFER_FULL_STRATEGY).getValue()));
+        }
     }
 
-    private String tagsToString(Map<String,String> tags) {
-        StringBuilder b = new StringBuilder();
-        if (tags == null || tags.isEmpty()) return "";
-        boolean first = true;
-        for (Map.Entry<String,String> next : tags.entrySet()) {
-            if (!first)
-                b.append(',');
-            else
-                first = false;
-            b.append(next.getKey()).append('=').append(next.getValue());
-
+    @OnDisabled
+    public void shutdown() {
+        if (writeBuffer != null) {
+            // drain while the client is still available
+            writeBuffer.close();
+            writeBuffer = null;
+        }
+        if (writePipeline != null) {
+            writePipeline.close();
+            writePipeline = null;
+        }
+        if (writeSpool != null) {
+            // whatever has not been replayed yet stays on disk for the next time the service is enabled
+            writeSpool.close();
+            writeSpool = null;
+        }
+        if (queryCache != null) {
+            logger.info("{} query cache had {} hits, {} misses and {} evictions",
+                    new Object[]{this, queryCache.getHits(), queryCache.getMisses(), queryCache.getEvictions()});
+            queryCache.clear();
+            queryCache = null;
+        }
+        logger.info("{} wrote {} bytes of line protocol as {} bytes", new Object[]{this, bytesWritten.get(), bytesSent.get()});
+        if (asyncPool != null) {
+            // let requests in flight finish, their callers are waiting for them
+            asyncPool.shutdown();
+            try {
+                asyncPool.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            asyncPool = null;
+        }
+        if (fanOut != null) {
+            fanOut.shutdown();
+            fanOut = null;
+        }
+        if (udp != null) {
+            logger.info("{} sent {} UDP datagrams with {} bytes, dropped {}",
+                    new Object[]{this, udp.getPackets(), udp.getBytes(), udp.getDropped()});
+            udp.close();
+            udp = null;
+        }
+        if (idleConnectionReaper != null) {
+            idleConnectionReaper.shutdownNow();
+            idleConnectionReaper = null;
+        }
+        if (client != null) {
+            client.destroy();
+            client = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
         }
-        return b.toString();
     }
 
     @Override
     public void write(String measurement, double value, Map<String, String> tags) {
-        StringBuilder b = new StringBuilder();
-        b.append(measurement).append(',').append(tagsToString(tags)).append(" value=").append(value);
-        post(b.toString());
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.measurement(measurement).tags(tags).field("value", value).end();
+        writeEncoded(encoder);
     }
 
     @Override
     public void write(String measurement, double value, Map<String, String> tags, long timestamp) {
-        StringBuilder b = new StringBuilder();
-        b.append(measurement).append(',').append(tagsToString(tags)).append(" value=").append(value);
-        post(b.toString());
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.measurement(measurement).tags(tags).field("value", value).timestamp(precision.fromMillis(timestamp)).end();
+        writeEncoded(encoder);
     }
 
     @Override
     public void write(List<String> batch) {
-        StringBuilder b = new StringBuilder();
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.checkFailed();
+        }
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
         for (String line : batch) {
-            b.append(line).append("\n");
+            if (buffer != null) {
+                encoder.reset();
+                buffer.add(encoder.line(line).toByteArray());
+            } else {
+                encoder.line(line);
+            }
+        }
+        if (buffer == null) {
+            dispatch(encoder.buffer(), encoder.length());
+        }
+    }
+
+    @Override
+    public void write(Collection<Point> points) {
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.checkFailed();
+        }
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        for (Point point : points) {
+            if (buffer != null) {
+                encoder.reset();
+                buffer.add(encoder.point(point, precision.unit()).toByteArray());
+            } else {
+                encoder.point(point, precision.unit());
+            }
+        }
+        if (buffer == null && encoder.points() > 0) {
+            dispatch(encoder.buffer(), encoder.length());
+        }
+    }
+
+    /**
+     * Queue or send the points held by the encoder
+     * @param encoder
+     */
+    private void writeEncoded(LineProtocolEncoder encoder) {
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.checkFailed();
+            buffer.add(encoder.toByteArray());
+        } else {
+            dispatch(encoder.buffer(), encoder.length());
         }
-        post(b.toString());
     }
 
-    private Client createClient() {
-        ClientConfig cc = new DefaultClientConfig();
+    /**
+     * Sends the content to InfluxDB in slices that end on line boundaries, one request per slice, on the calling thread.
+     * Only one slice is held in memory at a time, so rejected lines can be isolated and unsent slices spooled.
+     */
+    @Override
+    public void write(InputStream lineProtocol, int maxLines, long maxBytes) throws IOException {
+        LineSlicer slicer = new LineSlicer(lineProtocol);
+        ByteArrayOutputStream slice = new ByteArrayOutputStream((int) Math.min(maxBytes, MAX_SLICE_BUFFER));
+        List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+        int lines = 0;
+        while (slicer.hasMore()) {
+            slice.reset();
+            StreamUtils.copy(slicer.nextSlice(maxLines, maxBytes), slice);
+            lines += postIsolating(slice.getUnderlyingBuffer(), 0, slice.size(), lines, writeSpool, rejected);
+        }
+        if (!rejected.isEmpty()) {
+            throw new RejectedLinesException(rejected, lines);
+        }
+    }
+
+    @Override
+    public Future<Void> writeAsync(final Collection<Point> points, Callback<Void> callback) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() {
+                write(points);
+                return null;
+            }
+        }, callback);
+    }
+
+    @Override
+    public Future<Results> queryAsync(final String query, final boolean pretty, Callback<Results> callback) {
+        return async(new Callable<Results>() {
+            @Override
+            public Results call() {
+                return query(query, pretty);
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> async(Callable<T> call, final Callback<T> callback) {
+        final ExecutorService pool = asyncPool;
+        if (pool == null) {
+            throw new IllegalStateException(this + " is not enabled");
+        }
+        FutureTask<T> task = new FutureTask<T>(call) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    callback.completed(get());
+                } catch (ExecutionException x) {
+                    callback.failed(x.getCause() instanceof Exception ? (Exception) x.getCause() : x);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException x) {
+                    logger.error("Callback of an asynchronous request failed", x);
+                }
+            }
+        };
+        pool.execute(task);
+        return task;
+    }
+
+    @Override
+    public void flush() {
+        final WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.flush();
+        }
+        // pipelined writes return once they were sent, there is nothing left to wait for
+    }
+
+    /**
+     * @return number of write requests waiting to be sent, or 0 when writes are not pipelined
+     */
+    public int getQueuedWrites() {
+        final WritePipeline pipeline = writePipeline;
+        return pipeline == null ? 0 : pipeline.getQueueDepth();
+    }
+
+    /**
+     * @return number of pipelined write requests currently being sent
+     */
+    public int getInFlightWrites() {
+        final WritePipeline pipeline = writePipeline;
+        return pipeline == null ? 0 : pipeline.getInFlight();
+    }
+
+    /**
+     * @return number of write requests spooled to disk and waiting to be replayed
+     */
+    public long getSpoolDepth() {
+        final WriteSpool spool = writeSpool;
+        return spool == null ? 0 : spool.getDepth();
+    }
+
+    /**
+     * @return milliseconds since the oldest write request waiting in the spool was spooled
+     */
+    public long getSpoolAge() {
+        final WriteSpool spool = writeSpool;
+        return spool == null ? 0 : spool.getAge();
+    }
+
+    /**
+     * @return number of queries answered from the query cache, including those that waited for an identical query
+     */
+    public long getQueryCacheHits() {
+        final QueryCache cache = queryCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return number of cacheable queries sent to InfluxDB
+     */
+    public long getQueryCacheMisses() {
+        final QueryCache cache = queryCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * @return number of cached results evicted before they expired, to stay within the query cache max size
+     */
+    public long getQueryCacheEvictions() {
+        final QueryCache cache = queryCache;
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    /**
+     * @return number of hosts that did not fail recently
+     */
+    public int getHealthyHosts() {
+        final Endpoints hosts = endpoints;
+        return hosts == null ? 0 : hosts.getHealthy();
+    }
+
+    /**
+     * @return number of UDP datagrams sent, 0 unless writes use UDP
+     */
+    public long getUdpPacketsSent() {
+        final UdpSender sender = udp;
+        return sender == null ? 0 : sender.getPackets();
+    }
+
+    /**
+     * @return bytes of line protocol sent in UDP datagrams
+     */
+    public long getUdpBytesSent() {
+        final UdpSender sender = udp;
+        return sender == null ? 0 : sender.getBytes();
+    }
+
+    /**
+     * @return number of UDP datagrams dropped because the socket buffer was full, plus lines too long for a datagram
+     */
+    public long getUdpDropped() {
+        final UdpSender sender = udp;
+        return sender == null ? 0 : sender.getDropped();
+    }
+
+    /**
+     * Send the body on the calling thread, or split it over the write pipeline when writes are pipelined
+     * @param body
+     * @param length
+     * @throws RejectedLinesException when InfluxDB rejected some of the lines, all others have been written
+     */
+    private void dispatch(byte[] body, int length) {
+        final WritePipeline pipeline = writePipeline;
+        if (pipeline != null) {
+            pipeline.write(body, length);
+        } else {
+            post(body, length);
+        }
+    }
+
+    /**
+     * Creates the pooled keep-alive client used for all requests until this service is disabled.
+     * Jersey clients and the underlying connection manager are thread safe.
+     * @param context
+     */
+    private void createClient(final ConfigurationContext context) {
+        final int maxConnections = context.getProperty(MAX_CONNECTIONS).asInteger();
+        final long idleTimeout = context.getProperty(IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        connectionManager = new ThreadSafeClientConnManager();
+        // every host gets the max connections
+        connectionManager.setMaxTotal(maxConnections * endpoints.size());
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        ClientConfig cc = new DefaultApacheHttpClient4Config();
+        cc.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connectionManager);
+        cc.getProperties().put(ApacheHttpClient4Config.PROPERTY_DISABLE_COOKIES, true);
         cc.getProperties().put(ClientConfig.PROPERTY_FOLLOW_REDIRECTS, true);
-        cc.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
-        Client c = Client.create(cc);
+        cc.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, context.getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        cc.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        Client c = ApacheHttpClient4.create(cc);
 
         HTTPBasicAuthFilter auth = new HTTPBasicAuthFilter(
-                getProperty(USERNAME).getValue(),
-                getProperty(PASSWORD).getValue());
+                context.getProperty(USERNAME).getValue(),
+                context.getProperty(PASSWORD).getValue());
         c.addFilter(auth);
+        client = c;
+
+        idleConnectionReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, InfluxDBService.this + "-idle-connection-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (endpoints.size() > 1) {
+            fanOut = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, InfluxDBService.this + "-write-fan-out");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        final ThreadSafeClientConnManager cm = connectionManager;
+        idleConnectionReaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                cm.closeExpiredConnections();
+                cm.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private Endpoints endpoints() {
+        final Endpoints e = endpoints;
+        if (e == null) {
+            throw new IllegalStateException(this + " is not enabled");
+        }
+        return e;
+    }
+
+    private Client client() {
+        final Client c = client;
+        if (c == null) {
+            throw new IllegalStateException(this + " is not enabled");
+        }
         return c;
     }
 
-    public Results query(String query, boolean pretty) {
+    public Results query(final String query, final boolean pretty) {
+        final QueryCache cache = queryCache;
+        try {
+            if (cache == null || !QueryCache.isCacheable(query)) {
+                try (QueryResponse response = openQuery(query, pretty)) {
+                    return JsonUtils.streamToType(response.entity(), Results.class);
+                }
+            }
+            String key = getProperty(DATABASE_NAME).getValue() + "\n" + pretty + "\n" + QueryCache.normalize(query);
+            byte[] body = cache.get(key, new QueryCache.Loader() {
+                @Override
+                public byte[] load() throws IOException {
+                    return queryBody(query, pretty);
+                }
+            });
+            return JsonUtils.streamToType(new ByteArrayInputStream(body), Results.class);
+        } catch (IOException x) {
+            throw new RuntimeException("Error reading query result", x);
+        }
+    }
+
+    /**
+     * @return the response to the query as sent by InfluxDB, uncompressed
+     */
+    private byte[] queryBody(String query, boolean pretty) throws IOException {
+        try (QueryResponse response = openQuery(query, pretty)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            StreamUtils.copy(response.entity(), body);
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * @return the response to the query, which must be closed
+     */
+    private QueryResponse openQuery(String query, boolean pretty) {
         MultivaluedMap<String, String> params = new MultivaluedMapImpl();
-        params.add("db", getProperty(DATABASE_NAME).getValue());
         if (pretty) {
             params.add("pretty", "true");
         }
+        return query(query, params);
+    }
+
+    @Override
+    public void query(String query, int chunkSize, TimeUnit epoch, SeriesHandler handler) throws IOException {
+        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        if (epoch != null) {
+            params.add("epoch", epoch(epoch));
+        }
+        if (chunkSize > 0) {
+            params.add("chunked", "true");
+            params.add("chunk_size", String.valueOf(chunkSize));
+        }
+        try (QueryResponse response = query(query, params)) {
+            new QueryResultParser(handler).parse(response.entity());
+        }
+    }
+
+    @Override
+    public List<ColumnarSeries> queryColumnar(String query, TimeUnit epoch) throws IOException {
+        MultivaluedMap<String, String> params = new MultivaluedMapImpl();
+        params.add("epoch", epoch(epoch));
+        // let InfluxDB stream the result too, the parser joins the chunks of a series
+        params.add("chunked", "true");
+        params.add("chunk_size", String.valueOf(COLUMNAR_CHUNK_SIZE));
+        try (QueryResponse response = query(query, params)) {
+            return QueryResultParser.parseColumnar(response.entity());
+        }
+    }
+
+    private static String epoch(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "ns";
+            case MICROSECONDS:
+                return "u";
+            case MILLISECONDS:
+                return "ms";
+            case SECONDS:
+                return "s";
+            case MINUTES:
+                return "m";
+            case HOURS:
+                return "h";
+            default:
+                throw new IllegalArgumentException("InfluxDB does not return times in " + unit);
+        }
+    }
+
+    /**
+     * Send the query to the healthy host with the fewest outstanding requests, trying the next host when one
+     * cannot be reached or fails with a server error
+     * @return the response, which must be closed
+     * @throws IllegalArgumentException when InfluxDB rejected the query (status 400)
+     * @throws IllegalStateException when InfluxDB refused the query for another client error, e.g. wrong credentials
+     */
+    private QueryResponse query(String query, MultivaluedMap<String, String> params) {
+        params.add("db", getProperty(DATABASE_NAME).getValue());
         params.add("q", query);
-        String result = createClient().resource(base().append("/query").toString()).queryParams(params).get(String.class);
-        return JsonUtils.stringToType(result, Results.class);
+        final Endpoints hosts = endpoints();
+        RuntimeException failure = null;
+        for (Endpoints.Endpoint endpoint : hosts.forQuery()) {
+            endpoint.outstanding.incrementAndGet();
+            boolean open = false;
+            try {
+                WebResource.Builder request = client().resource(endpoint.url + "/query").queryParams(params).getRequestBuilder();
+                if (gzip) {
+                    request = request.header("Accept-Encoding", "gzip");
+                }
+                ClientResponse response = request.get(ClientResponse.class);
+                if (response.getStatus() >= 300) {
+                    int status = response.getStatus();
+                    String error = response.getEntity(String.class);
+                    response.close();
+                    if (status == 400) {
+                        // the query does not parse, every host rejects it
+                        throw new IllegalArgumentException(error);
+                    }
+                    if (status < 500) {
+                        // e.g. unauthorized or unknown database, the host is fine
+                        throw new IllegalStateException("InfluxDB refused the query on " + endpoint + " with status "
+                                + status + ": " + error);
+                    }
+                    RuntimeException x = new RuntimeException("Query failed on " + endpoint + " with status "
+                            + status + ": " + error);
+                    hosts.failed(endpoint, x);
+                    failure = x;
+                    continue;
+                }
+                hosts.succeeded(endpoint);
+                open = true;
+                return new QueryResponse(response, endpoint);
+            } catch (ClientHandlerException x) {
+                hosts.failed(endpoint, x);
+                failure = x;
+            } finally {
+                if (!open) {
+                    endpoint.outstanding.decrementAndGet();
+                }
+            }
+        }
+        throw failure;
     }
 
-    private void post(String data) {
+    /**
+     * A query response, counted as outstanding on its host until it is closed
+     */
+    private static class QueryResponse implements Closeable {
+        private final ClientResponse response;
+        private final Endpoints.Endpoint endpoint;
+
+        QueryResponse(ClientResponse response, Endpoints.Endpoint endpoint) {
+            this.response = response;
+            this.endpoint = endpoint;
+        }
+
+        InputStream entity() throws IOException {
+            InputStream in = response.getEntityInputStream();
+            if ("gzip".equalsIgnoreCase(response.getHeaders().getFirst("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            return in;
+        }
+
+        @Override
+        public void close() {
+            response.close();
+            endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send the body on the calling thread, see {@link #postIsolating}
+     * @param body
+     * @param length
+     * @throws RejectedLinesException when InfluxDB rejected some of the lines, all others have been written
+     */
+    private void post(byte[] body, int length) {
+        post(body, 0, length, writeSpool);
+    }
+
+    private void post(byte[] body, int offset, int length, WriteSpool spool) {
+        List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+        int lines = postIsolating(body, offset, offset + length, 0, spool, rejected);
+        if (!rejected.isEmpty()) {
+            throw new RejectedLinesException(rejected, lines);
+        }
+    }
+
+    /**
+     * Send the lines in body[from, to). When InfluxDB rejects them as bad data, split them in half on a line boundary
+     * and send each half the same way, until every rejected line is isolated and all other lines have been written.
+     * Resent points overwrite the identical points InfluxDB may already have accepted; only points without
+     * a timestamp can end up written twice.
+     * When a spool is given and InfluxDB is unavailable (cannot be reached or fails with a server error), the lines
+     * are spooled to disk instead, and while there is a spool backlog lines are spooled right away to keep their
+     * order. When InfluxDB refuses the request for another client error, e.g. wrong credentials or an unknown
+     * database, the write fails instead, as replaying it would fail the same way.
+     * @param body
+     * @param from
+     * @param to
+     * @param firstLine number of the first line, to number rejected lines
+     * @param spool
+     * @param rejected collects the rejected lines
+     * @return number of lines in the range
+     */
+    private int postIsolating(byte[] body, int from, int to, int firstLine, WriteSpool spool,
+                              List<RejectedLinesException.RejectedLine> rejected) {
+        if (spool != null && spool.hasBacklog()) {
+            spool(spool, body, from, to - from);
+            return countLines(body, from, to);
+        }
+        try {
+            postNow(body, from, to - from);
+            return countLines(body, from, to);
+        } catch (IllegalArgumentException x) {
+            int lines = countLines(body, from, to);
+            if (lines <= 1) {
+                int end = to > from && body[to - 1] == '\n' ? to - 1 : to;
+                rejected.add(new RejectedLinesException.RejectedLine(firstLine,
+                        new String(body, from, end - from, StandardCharsets.UTF_8), x.getMessage()));
+                return lines;
+            }
+            int half = lines / 2;
+            int mid = from;
+            for (int n = 0; n < half; mid++) {
+                if (body[mid] == '\n') n++;
+            }
+            return postIsolating(body, from, mid, firstLine, spool, rejected)
+                    + postIsolating(body, mid, to, firstLine + half, spool, rejected);
+        } catch (IllegalStateException x) {
+            throw x;
+        } catch (RuntimeException x) {
+            if (spool == null) {
+                throw x;
+            }
+            logger.warn("InfluxDB is unavailable, spooling writes to disk until it is back", x);
+            spool(spool, body, from, to - from);
+            return countLines(body, from, to);
+        }
+    }
+
+    private static int countLines(byte[] body, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (body[i] == '\n') lines++;
+        }
+        return to > from && body[to - 1] != '\n' ? lines + 1 : lines;
+    }
+
+    private void spool(WriteSpool spool, byte[] body, int offset, int length) {
+        try {
+            spool.append(body, offset, length);
+        } catch (IOException x) {
+            throw new RuntimeException("Could not spool write request of " + length + " bytes", x);
+        }
+    }
+
+    /**
+     * Send the body once, to every host. Errors never include the body, only InfluxDB's error message.
+     * When every host has to accept the body, it is not copied, and this only returns once all hosts answered.
+     * @param body
+     * @param offset
+     * @param length
+     * @throws IllegalArgumentException when InfluxDB rejected the body as bad data (status 400)
+     * @throws IllegalStateException when InfluxDB refused the body for another client error, e.g. wrong credentials
+     */
+    private void postNow(byte[] body, int offset, final int length) {
+        final UdpSender sender = udp;
+        if (sender != null) {
+            try {
+                sender.send(body, offset, length);
+            } catch (IOException x) {
+                throw new RuntimeException("Error sending " + length + " bytes over UDP", x);
+            }
+            bytesWritten.addAndGet(length);
+            bytesSent.addAndGet(length);
+            return;
+        }
+        final boolean compress = gzip && length >= compressionThreshold;
+        final List<Endpoints.Endpoint> hosts = endpoints().all();
+        if (hosts.size() == 1) {
+            postTo(hosts.get(0), body, offset, length, compress);
+            return;
+        }
+        final int required = writeConsistency.required(hosts.size());
+        final boolean copied = required < hosts.size();
+        if (copied) {
+            // requests to the slower hosts carry on after this returns, while the caller may reuse the body
+            body = Arrays.copyOfRange(body, offset, offset + length);
+            offset = 0;
+        }
+        final byte[] data = body;
+        final int from = offset;
+        CompletionService<Void> acks = new ExecutorCompletionService<>(fanOut);
+        for (final Endpoints.Endpoint endpoint : hosts) {
+            acks.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    postTo(endpoint, data, from, length, compress);
+                    return null;
+                }
+            });
+        }
+        int acked = 0;
+        int failed = 0;
+        int done = 0;
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        while (acked < required && failure == null) {
+            try {
+                Future<Void> ack = acks.take();
+                done++;
+                ack.get();
+                acked++;
+            } catch (ExecutionException x) {
+                if (x.getCause() instanceof IllegalArgumentException) {
+                    // rejected lines are rejected by every host
+                    failure = (IllegalArgumentException) x.getCause();
+                } else if (++failed > hosts.size() - required) {
+                    failure = x.getCause() instanceof RuntimeException ? (RuntimeException) x.getCause()
+                            : new RuntimeException(x.getCause());
+                }
+            } catch (InterruptedException x) {
+                interrupted = true;
+                failure = new RuntimeException("Interrupted writing to InfluxDB", x);
+            }
+        }
+        if (failure != null && !copied) {
+            // the requests still running read the caller's body, which it may reuse once this returns
+            while (done < hosts.size()) {
+                try {
+                    acks.take();
+                    done++;
+                } catch (InterruptedException x) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void postTo(Endpoints.Endpoint endpoint, byte[] body, int offset, int length, boolean compress) {
+        try {
+            send(endpoint, new ByteArrayInputStream(body, offset, length), compress);
+            endpoints().succeeded(endpoint);
+        } catch (UniformInterfaceException x) {
+            int status = x.getResponse().getStatus();
+            String error = x.getResponse().getEntity(String.class);
+            if (status == 400) {
+                throw new IllegalArgumentException(error, x);
+            }
+            if (status >= 500) {
+                endpoints().failed(endpoint, x);
+            }
+            if (status < 500) {
+                // other client errors, e.g. unauthorized or unknown database, fail the whole body without bisecting it
+                throw new IllegalStateException("InfluxDB refused writing " + length + " bytes to " + endpoint
+                        + ", status " + status + ": " + error, x);
+            }
+            throw new RuntimeException("Error writing " + length + " bytes to " + endpoint + ", status " + status
+                    + ": " + error, x);
+        } catch (ClientHandlerException x) {
+            endpoints().failed(endpoint, x);
+            throw x;
+        }
+    }
+
+    /**
+     * Post the body to the write endpoint. It is copied to the request (gzipped or not) as it is read
+     * and sent with chunked transfer encoding.
+     * @param endpoint
+     * @param body
+     * @param compress
+     */
+    private void send(Endpoints.Endpoint endpoint, InputStream body, boolean compress) {
         MultivaluedMap<String, String> params = new MultivaluedMapImpl();
         params.add("db", getProperty(DATABASE_NAME).getValue());
         if (getProperty(RETENTION_POLICY).isSet()) {
             params.add("rp", getProperty(RETENTION_POLICY).getValue());
         }
-        if (getProperty(PRECISION).isSet()) {
-            String p = Precision.valueOf(getProperty(PRECISION).getValue()).paramValue();
-            if (!"n".equals(p)) params.add("precision",p);
+        if (precision != Precision.Nanos) {
+            params.add("precision", precision.paramValue());
         }
-        try {
-            createClient().resource(base().append("/write").toString()).queryParams(params).post(data);
-        } catch (UniformInterfaceException x) {
-            logger.error("Error writing '" + data + "'", x.getResponse().getEntity(String.class));
-            if (x.getResponse().getStatus()< 500)
-                throw new IllegalArgumentException("Bad data:" + data, x);
-            else
-                throw new RuntimeException("Error writing data " + data, x);
+        final long start = System.nanoTime();
+        WriteEntity entity = new WriteEntity(body, compress ? compressionLevel : -1);
+        WebResource.Builder request = client().resource(endpoint.url + "/write").queryParams(params).getRequestBuilder();
+        if (compress) {
+            request = request.header("Content-Encoding", "gzip");
+        }
+        request.post(entity);
+        bytesWritten.addAndGet(entity.uncompressed);
+        bytesSent.addAndGet(entity.sent);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Wrote {} bytes as {} bytes in {} ms", new Object[]{entity.uncompressed, entity.sent,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
         }
     }
 
-    private StringBuffer base() {
-        StringBuffer b = new StringBuffer("http://");
-        b.append(getProperty(INFLUXDB_HOST).getValue())
-                .append(":")
-                .append(getProperty(INFLUXDB_PORT).getValue());
-        return b;
+    /**
+     * Request entity copying the body to the request stream, counting bytes before and after compression
+     */
+    static class WriteEntity implements StreamingOutput {
+        private final InputStream body;
+        private final int compressionLevel;
+        long uncompressed = 0;
+        long sent = 0;
+
+        WriteEntity(InputStream body, int compressionLevel) {
+            this.body = body;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            ByteCountingOutputStream wire = new ByteCountingOutputStream(output);
+            OutputStream out = compressionLevel < 0 ? wire : new GZIPOutputStream(wire, compressionLevel);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                uncompressed += n;
+            }
+            if (out instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) out).finish();
+            }
+            out.flush();
+            sent = wire.getBytesWritten();
+        }
     }
 }
@@ -19,18 +19,121 @@ package org.apache.nifi.influxdb;
 import org.apache.nifi.controller.ControllerService;
 
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public interface InfluxDBServiceInterface extends ControllerService {
 
     void write(String measurement, double value, Map<String,String> tags);
+    /**
+     * Write a single measurement with an explicit timestamp
+     * @param measurement
+     * @param value
+     * @param tags
+     * @param timestamp milliseconds since the epoch, written in the precision configured on the service
+     */
     void write(String measurement, double value, Map<String,String> tags, long timestamp);
 
     void write(List<String> batch); // TODO assumed to have correct format - bad but speedy
 
+    /**
+     * Write all points in a single call, unless the service buffers writes. Pipelined writes return once every part
+     * was sent, so they report errors like unbuffered writes.
+     * @param points
+     * @throws RejectedLinesException when InfluxDB rejected some points, numbered in iteration order; all others were written.
+     * Not thrown for buffered writes, which only queue the points
+     * @throws RuntimeException when the points could not be written. With buffered writes, when a batch sent in the
+     * background failed since the last call, with the batch's error as its cause (a {@link RejectedLinesException}
+     * numbers lines within that batch); or an IllegalStateException when the buffer is full and does not block
+     */
+    void write(Collection<Point> points);
+
+    /**
+     * Write line protocol read from the stream, one request per maxLines lines or maxBytes bytes
+     * @param lineProtocol
+     * @param maxLines
+     * @param maxBytes
+     * @throws IOException
+     * @throws RejectedLinesException when InfluxDB rejected some lines, all others were written
+     */
+    void write(InputStream lineProtocol, int maxLines, long maxBytes) throws IOException;
+
+    /**
+     * Send all buffered or queued writes to InfluxDB and wait until they have been sent.
+     * Does nothing when the service writes on the calling thread.
+     * @throws RuntimeException when a write sent in the background failed
+     */
+    void flush();
+
     Results query(String query, boolean pretty);
 
+    /**
+     * Run the query with a chunked response, handing every series to the handler as soon as it has been parsed,
+     * so memory use is bounded by the chunk size rather than by the size of the result
+     * @param query
+     * @param chunkSize maximum number of rows InfluxDB sends per chunk, or 0 to get the whole result as one response,
+     *                  which is still parsed as it is read. InfluxDB 0.9 does not number the results of a chunked response,
+     *                  so only an unchunked response tells which statement of a multi-statement query a series belongs to
+     * @param epoch unit to get times in, or null for RFC3339 time strings
+     * @param handler
+     * @throws IOException when the handler fails or the response cannot be read
+     */
+    void query(String query, int chunkSize, TimeUnit epoch, SeriesHandler handler) throws IOException;
+
+    /**
+     * Run the query and read the result straight into columns of primitive values, see {@link ColumnarSeries}
+     * @param query
+     * @param epoch unit of the time column
+     * @return all series of the result, in statement order
+     * @throws IOException when the response cannot be read
+     * @throws IllegalArgumentException when InfluxDB returned an error for the query or one of its statements
+     */
+    List<ColumnarSeries> queryColumnar(String query, TimeUnit epoch) throws IOException;
+
+    /**
+     * Write all points in a single call on one of the service's threads, so the caller can have several writes in flight
+     * @param points
+     * @param callback [optional] told the outcome, on the service's thread
+     * @return done once the points were written; get() throws an ExecutionException caused by
+     * {@link RejectedLinesException} when InfluxDB rejected some points
+     */
+    Future<Void> writeAsync(Collection<Point> points, Callback<Void> callback);
+
+    /**
+     * Run the query on one of the service's threads, so the caller can have several queries in flight
+     * @param query
+     * @param pretty
+     * @param callback [optional] told the outcome, on the service's thread
+     * @return done once the result has been read
+     */
+    Future<Results> queryAsync(String query, boolean pretty, Callback<Results> callback);
+
+    interface Callback<T> {
+        void completed(T result);
+
+        void failed(Exception error);
+    }
+
+    interface SeriesHandler {
+        /**
+         * @param statement index of the query statement the series belongs to
+         * @param series
+         * @param partial whether more rows of this series follow in the next call
+         */
+        void series(int statement, Series series, boolean partial) throws IOException;
+
+        /**
+         * @param statement index of the failed statement, or -1 when the whole query failed
+         * @param error
+         */
+        void error(int statement, String error) throws IOException;
+    }
+
     class Series {
         String name;
         Map<String,String> tags;
@@ -18,6 +18,9 @@ package org.apache.nifi.influxdb;
  */
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
@@ -26,12 +29,16 @@ import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ProcessorLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.stream.io.BufferedInputStream;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 @Tags({"InfluxDB", "metrics", "time-series"})
@@ -41,9 +48,13 @@ import java.util.*;
         @ReadsAttribute(attribute="influxdb.measurement", description="Name of the measurement (time-series)"),
         @ReadsAttribute(attribute="influxdb.value", description="Value of the measurement"),
         @ReadsAttribute(attribute="influxdb.tag.<tagname>", description="Additional tags to write with the measurement"),
-        @ReadsAttribute(attribute="influxdb.timestamp", description="Optional timestamp for the measurement")
+        @ReadsAttribute(attribute="influxdb.timestamp", description="Optional timestamp for the measurement in milliseconds since the epoch")
 })
-
+@WritesAttributes({
+        @WritesAttribute(attribute="influxdb.error", description="Error InfluxDB returned for a rejected measurement"),
+        @WritesAttribute(attribute="influxdb.rejected.count", description="Number of rejected lines in a flow file holding lines rejected from content")
+})
+@SupportsBatching
 public class InfluxDBWriter extends AbstractProcessor {
 
     public static final PropertyDescriptor INFLUXDB_SERVICE = new PropertyDescriptor.Builder()
@@ -64,17 +75,43 @@ public class InfluxDBWriter extends AbstractProcessor {
 
     public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
             .name("BATCH_SIZE").displayName("Measurement Batch Size")
-            .description("Only applicable to Flowfile content processing; how many measurements to send in a single call to InfluxDB")
+            .description("How many measurements to send in a single call to InfluxDB. When getting data from attributes " +
+                    "this is the number of flow files combined into a single call")
             .required(false)
             .defaultValue("1")
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_BATCH_SIZE").displayName("Measurement Batch Max Size")
+            .description("Only applicable to Flowfile content processing; a call to InfluxDB ends after the line during which " +
+                    "this much content has been sent, even if it holds fewer measurements than the batch size")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCHES_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("BATCHES_IN_FLIGHT").displayName("Batches In Flight")
+            .description("Only applicable to getting data from attributes; number of batches taken per run and written " +
+                    "concurrently by the service's async threads, instead of one batch at a time on the processor's thread")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship ORIGINAL = new Relationship.Builder()
             .name("original")
             .description("Original flow file is simply forwarded here when writing succeeded.")
             .build();
 
+    public static final Relationship FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Flow files whose measurement could not be written are sent here. When getting data from content, " +
+                    "the lines InfluxDB rejected are sent here as a new flow file, while the original goes to original " +
+                    "since all other lines were written.")
+            .build();
+
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
 
@@ -85,10 +122,13 @@ public class InfluxDBWriter extends AbstractProcessor {
         descriptors.add(INFLUXDB_SERVICE);
         descriptors.add(FROM_ATTRIBUTES);
         descriptors.add(BATCH_SIZE);
+        descriptors.add(MAX_BATCH_SIZE);
+        descriptors.add(BATCHES_IN_FLIGHT);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(ORIGINAL);
+        relationships.add(FAILURE);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -105,81 +145,209 @@ public class InfluxDBWriter extends AbstractProcessor {
 
     @Override
     public void onTrigger(ProcessContext processContext, ProcessSession processSession) throws ProcessException {
+        boolean fromAttributes = Boolean.valueOf(processContext.getProperty(FROM_ATTRIBUTES).getValue());
+        int batchSize = Integer.valueOf(processContext.getProperty(BATCH_SIZE).getValue());
+        InfluxDBServiceInterface influxdb = processContext.getProperty(INFLUXDB_SERVICE).asControllerService(InfluxDBServiceInterface.class);
+        if (fromAttributes) {
+            final int inFlight = processContext.getProperty(BATCHES_IN_FLIGHT).asInteger();
+            final List<FlowFile> flowFiles = processSession.get(batchSize * inFlight);
+            if (flowFiles.isEmpty()) {
+                return;
+            }
+            if (inFlight == 1) {
+                processAttributes(influxdb, processSession, flowFiles);
+            } else {
+                processAttributesAsync(influxdb, processSession, flowFiles, batchSize);
+            }
+        } else {
+            final FlowFile original = processSession.get();
+            if ( original == null ) {
+                return;
+            }
+            long maxBatchBytes = processContext.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B).longValue();
+            processFlowfileContent(influxdb, processSession, original, batchSize, maxBatchBytes);
+        }
+    }
 
-        final FlowFile original = processSession.get();
-        if ( original == null ) {
+    /**
+     * Write a single measurement per flowfile taken from its attributes, see documentation (annotations) for attribute names.
+     * The measurements of all flowfiles are sent to InfluxDB in a single call.
+     * @param influxdb
+     * @param processSession
+     * @param flowFiles
+     */
+    private void processAttributes(final InfluxDBServiceInterface influxdb, final ProcessSession processSession,
+                                   final List<FlowFile> flowFiles) {
+        final List<Point> points = new ArrayList<>(flowFiles.size());
+        final List<FlowFile> written = new ArrayList<>(flowFiles.size());
+        toPoints(processSession, flowFiles, points, written);
+        if (points.isEmpty()) {
             return;
         }
-        processSession.transfer(original, ORIGINAL);
-        boolean fromAttributes = Boolean.valueOf(processContext.getProperty(FROM_ATTRIBUTES).getValue());
-        InfluxDBServiceInterface influxdb = processContext.getProperty(INFLUXDB_SERVICE).asControllerService(InfluxDBServiceInterface.class);
-        if (fromAttributes)
-            processAttributes(influxdb, original.getAttributes());
-        else {
-            int batchSize = Integer.valueOf(processContext.getProperty(BATCH_SIZE).getValue());
-            processFlowfileContent(influxdb, processSession, original, batchSize);
+        Exception error = null;
+        try {
+            influxdb.write(points);
+        } catch (Exception x) {
+            error = x;
         }
+        route(processSession, points.size(), written, error);
     }
 
     /**
-     * Write a single measurement taken from flowfile attributes, see documentation (annotations) for attribute names
+     * Like {@link #processAttributes}, but sends the flowfiles in batches that are all in flight at the same time,
+     * then routes every batch once it was written. The session is only used on the calling thread.
      * @param influxdb
-     * @param atts
+     * @param processSession
+     * @param flowFiles
+     * @param batchSize
      */
-    private void processAttributes(final InfluxDBServiceInterface influxdb, final Map<String, String> atts) {
+    private void processAttributesAsync(final InfluxDBServiceInterface influxdb, final ProcessSession processSession,
+                                        final List<FlowFile> flowFiles, final int batchSize) {
+        final List<List<FlowFile>> batches = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Future<Void>> writes = new ArrayList<>();
+        for (int from = 0; from < flowFiles.size(); from += batchSize) {
+            final List<Point> points = new ArrayList<>(batchSize);
+            final List<FlowFile> written = new ArrayList<>(batchSize);
+            toPoints(processSession, flowFiles.subList(from, Math.min(from + batchSize, flowFiles.size())), points, written);
+            if (!points.isEmpty()) {
+                batches.add(written);
+                sizes.add(points.size());
+                writes.add(influxdb.writeAsync(points, null));
+            }
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            Exception error = null;
+            try {
+                writes.get(i).get();
+            } catch (ExecutionException x) {
+                error = x.getCause() instanceof Exception ? (Exception) x.getCause() : x;
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                error = x;
+            }
+            route(processSession, sizes.get(i), batches.get(i), error);
+        }
+    }
+
+    /**
+     * Convert the flowfiles to points; flowfiles without a measurement go to original, invalid ones to failure
+     * @param processSession
+     * @param flowFiles
+     * @param points receives the points
+     * @param written receives the flowfile of each point
+     */
+    private void toPoints(final ProcessSession processSession, final List<FlowFile> flowFiles,
+                          final List<Point> points, final List<FlowFile> written) {
+        for (FlowFile flowFile : flowFiles) {
+            try {
+                Point point = toPoint(flowFile.getAttributes());
+                if (point != null) {
+                    points.add(point);
+                    written.add(flowFile);
+                } else {
+                    processSession.transfer(flowFile, ORIGINAL);
+                }
+            } catch (Exception x) {
+                getLogger().error("Invalid influxdb measurement in {}", new Object[]{flowFile, x});
+                processSession.transfer(flowFile, FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Route the flowfiles of a written batch
+     * @param processSession
+     * @param points number of points in the batch
+     * @param written the flowfile of each point
+     * @param error why the write failed, or null
+     */
+    private void route(final ProcessSession processSession, final int points, final List<FlowFile> written,
+                       final Exception error) {
         final ProcessorLog logger = getLogger();
-        try {
-            String measurement = atts.get("influxdb.measurement");
-            String value = atts.get("influxdb.value");
-            if (measurement != null && value != null) {
-                double dblValue = Double.valueOf(value);
-                Map<String, String> tags = new HashMap<>();
-                for (String key : atts.keySet()) {
-                    if (key.startsWith("influxdb.tag.")) {
-                        String tagName = key.substring("influxdb.tag.".length());
-                        String tagValue = atts.get(key);
-                        tags.put(tagName, tagValue);
-                    }
+        if (error == null) {
+            processSession.transfer(written, ORIGINAL);
+        } else if (error instanceof RejectedLinesException) {
+            RejectedLinesException x = (RejectedLinesException) error;
+            logger.error("Error writing {} influxdb measurements: {}", new Object[]{points, x.getMessage()});
+            for (RejectedLinesException.RejectedLine line : x.getRejected()) {
+                FlowFile rejected = processSession.putAttribute(written.get(line.getNumber()), "influxdb.error", line.getError());
+                written.set(line.getNumber(), null);
+                processSession.transfer(rejected, FAILURE);
+            }
+            for (FlowFile flowFile : written) {
+                if (flowFile != null) {
+                    processSession.transfer(flowFile, ORIGINAL);
                 }
-                influxdb.write(measurement, dblValue, tags);
             }
-        } catch (Exception x) {
-            logger.error("Error writing influxdb measurement", x);
+        } else {
+            logger.error("Error writing {} influxdb measurements", new Object[]{points, error});
+            processSession.transfer(written, FAILURE);
         }
     }
 
+    /**
+     * Create the point described by the given attributes
+     * @param atts
+     * @return the point or null if the attributes do not contain a measurement
+     */
+    private Point toPoint(final Map<String, String> atts) {
+        String measurement = atts.get("influxdb.measurement");
+        String value = atts.get("influxdb.value");
+        if (measurement == null || value == null) {
+            return null;
+        }
+        Point.Builder point = new Point.Builder(measurement).field("value", Double.valueOf(value));
+        for (Map.Entry<String, String> att : atts.entrySet()) {
+            if (att.getKey().startsWith("influxdb.tag.")) {
+                point.tag(att.getKey().substring("influxdb.tag.".length()), att.getValue());
+            }
+        }
+        String timestamp = atts.get("influxdb.timestamp");
+        if (timestamp != null) {
+            point.time(Long.parseLong(timestamp.trim()), TimeUnit.MILLISECONDS);
+        }
+        return point.build();
+    }
+
     /**
      * Write potentially many measurements taken from the flowfile content, where each line has this format:
      * measurement_name, {tag_name=tag_value,}* measurement_value=someValue [timestamp]
+     * The content is sent to InfluxDB in slices as it is read and never rewritten; lines InfluxDB rejects go to failure.
      * @param influxdb
+     * @param processSession
      * @param in
+     * @param batchSize
+     * @param maxBatchBytes
      */
     private void processFlowfileContent(final InfluxDBServiceInterface influxdb, final ProcessSession processSession,
-                                        final FlowFile in, final int batchSize) {
-        FlowFile out = processSession.write(in, new StreamCallback() {
-            @Override
-            public void process(final InputStream rawIn, final OutputStream out) throws IOException {
-                try (final InputStream in = new BufferedInputStream(rawIn)) {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                    String line = null;
-                    List<String> buffer = new ArrayList<>();
-                    while ((line = reader.readLine()) != null) {
-                        out.write(line.getBytes());
-                        buffer.add(line);
-                        if (buffer.size() == batchSize) {
-                            influxdb.write(buffer);
-                            buffer.clear();
-                        }
-                    }
-                    // write last partial batch
-                    if (buffer.size() > 0) {
-                        influxdb.write(buffer);
+                                        final FlowFile in, final int batchSize, final long maxBatchBytes) {
+        try {
+            processSession.read(in, new InputStreamCallback() {
+                @Override
+                public void process(final InputStream rawIn) throws IOException {
+                    influxdb.write(rawIn, batchSize, maxBatchBytes);
+                }
+            });
+            processSession.transfer(in, ORIGINAL);
+        } catch (final RejectedLinesException x) {
+            getLogger().error("Error writing influxdb measurements from {}: {}", new Object[]{in, x.getMessage()});
+            FlowFile rejected = processSession.write(processSession.create(in), new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream out) throws IOException {
+                    for (RejectedLinesException.RejectedLine line : x.getRejected()) {
+                        out.write(line.getLine().getBytes(StandardCharsets.UTF_8));
+                        out.write('\n');
                     }
-                } catch (final Exception e) {
-                    throw new IOException(e);
                 }
-            }
-        });
-        processSession.transfer(out, ORIGINAL);
+            });
+            rejected = processSession.putAttribute(rejected, "influxdb.error", x.getRejected().get(0).getError());
+            rejected = processSession.putAttribute(rejected, "influxdb.rejected.count", String.valueOf(x.getRejected().size()));
+            processSession.transfer(rejected, FAILURE);
+            processSession.transfer(in, ORIGINAL);
+        } catch (Exception x) {
+            getLogger().error("Error writing influxdb measurements from {}", new Object[]{in, x});
+            processSession.transfer(in, FAILURE);
+        }
     }
 }
@@ -0,0 +1,383 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes points as InfluxDB line protocol straight into a growable UTF-8 byte buffer:
+ * <pre>measurement[,tag_key=tag_value]* field_key=field_value[,field_key=field_value]* [timestamp]\n</pre>
+ * Names and values are escaped, tags are written sorted by key (the order InfluxDB keeps series keys in),
+ * and numbers are formatted without creating intermediate Strings.
+ * Encoders are not thread safe; use {@link #get()} for the calling thread's reusable instance.
+ */
+class LineProtocolEncoder {
+
+    private static final ThreadLocal<LineProtocolEncoder> encoders = new ThreadLocal<LineProtocolEncoder>() {
+        @Override
+        protected LineProtocolEncoder initialValue() {
+            return new LineProtocolEncoder();
+        }
+    };
+
+    // buffers grown beyond this by a large batch are not kept around for the next one
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final double[] POWERS_OF_TEN = new double[18];
+    private static final double MAX_EXACT_DOUBLE = 9007199254740992d; // 2^53
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private enum Escape {
+        Measurement(", "), Key(",= "), FieldString("\"\\");
+
+        private final String special;
+
+        Escape(String special) {
+            this.special = special;
+        }
+
+        boolean isSpecial(char c) {
+            return special.indexOf(c) >= 0;
+        }
+    }
+
+    private byte[] buffer = new byte[4096];
+    private int length = 0;
+    private int points = 0;
+    private int lineStart = 0;
+    private boolean firstField;
+    private String[] tagKeys = new String[16];
+
+    /**
+     * @return the calling thread's encoder, emptied
+     */
+    static LineProtocolEncoder get() {
+        LineProtocolEncoder encoder = encoders.get();
+        encoder.reset();
+        return encoder;
+    }
+
+    void reset() {
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[4096];
+        }
+        length = 0;
+        points = 0;
+        lineStart = 0;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int points() {
+        return points;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Append a complete, already formatted line
+     * @param line
+     * @return this
+     */
+    LineProtocolEncoder line(String line) {
+        appendUtf8(line, null);
+        if (line.isEmpty() || line.charAt(line.length() - 1) != '\n') {
+            append('\n');
+        }
+        points++;
+        lineStart = length;
+        return this;
+    }
+
+    /**
+     * Append a complete point, converting its timestamp to the given write precision
+     * @param point
+     * @param precision
+     * @return this
+     */
+    LineProtocolEncoder point(Point point, TimeUnit precision) {
+        measurement(point.getMeasurement());
+        try {
+            for (int i = 0; i < point.getTagCount(); i++) {
+                tag(point.getTagKey(i), point.getTagValue(i));
+            }
+            for (int i = 0; i < point.getFieldCount(); i++) {
+                String key = point.getFieldKey(i);
+                switch (point.getFieldType(i)) {
+                    case Long:
+                        field(key, point.getLongField(i));
+                        break;
+                    case Double:
+                        field(key, point.getDoubleField(i));
+                        break;
+                    case Boolean:
+                        field(key, point.getBooleanField(i));
+                        break;
+                    case String:
+                        field(key, point.getStringField(i));
+                        break;
+                }
+            }
+            if (point.hasTime()) {
+                timestamp(point.getTime(precision));
+            }
+        } catch (RuntimeException x) {
+            // leave the points encoded before intact
+            discardPoint();
+            throw x;
+        }
+        return end();
+    }
+
+    LineProtocolEncoder measurement(String measurement) {
+        if (measurement == null || measurement.isEmpty()) {
+            throw new IllegalArgumentException("Measurement name is required");
+        }
+        lineStart = length;
+        firstField = true;
+        appendUtf8(measurement, Escape.Measurement);
+        return this;
+    }
+
+    LineProtocolEncoder tags(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return this;
+        }
+        int n = tags.size();
+        if (tagKeys.length < n) {
+            tagKeys = new String[Math.max(n, tagKeys.length * 2)];
+        }
+        int i = 0;
+        for (String key : tags.keySet()) {
+            tagKeys[i++] = key;
+        }
+        Arrays.sort(tagKeys, 0, n);
+        for (i = 0; i < n; i++) {
+            tag(tagKeys[i], tags.get(tagKeys[i]));
+            tagKeys[i] = null;
+        }
+        return this;
+    }
+
+    /**
+     * Tags must be appended in key order, before any field
+     */
+    LineProtocolEncoder tag(String key, String value) {
+        if (value == null || value.isEmpty()) {
+            // InfluxDB rejects empty tag values, a missing tag means the same thing
+            return this;
+        }
+        append(',');
+        appendUtf8(key, Escape.Key);
+        append('=');
+        appendUtf8(value, Escape.Key);
+        return this;
+    }
+
+    LineProtocolEncoder field(String key, double value) {
+        fieldKey(key);
+        appendDouble(value);
+        return this;
+    }
+
+    LineProtocolEncoder field(String key, long value) {
+        fieldKey(key);
+        appendLong(value);
+        append('i');
+        return this;
+    }
+
+    LineProtocolEncoder field(String key, boolean value) {
+        fieldKey(key);
+        appendAscii(value ? "true" : "false");
+        return this;
+    }
+
+    LineProtocolEncoder field(String key, String value) {
+        fieldKey(key);
+        append('"');
+        appendUtf8(value, Escape.FieldString);
+        append('"');
+        return this;
+    }
+
+    LineProtocolEncoder timestamp(long timestamp) {
+        append(' ');
+        appendLong(timestamp);
+        return this;
+    }
+
+    LineProtocolEncoder end() {
+        if (firstField) {
+            length = lineStart;
+            throw new IllegalArgumentException("A point needs at least one field");
+        }
+        append('\n');
+        points++;
+        lineStart = length;
+        return this;
+    }
+
+    /**
+     * Drop a partially encoded point, e.g. after an encoding error
+     */
+    void discardPoint() {
+        length = lineStart;
+    }
+
+    private void fieldKey(String key) {
+        append(firstField ? ' ' : ',');
+        firstField = false;
+        appendUtf8(key, Escape.Key);
+        append('=');
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void appendAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendUtf8(String s, Escape escape) {
+        // worst case: every char escaped or encoded as three bytes
+        ensureCapacity(s.length() * 3);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escape != null && escape.isSpecial(c)) {
+                    buffer[length++] = '\\';
+                }
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        // digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    /**
+     * Writes the shortest decimal m * 10^-k that parses back to exactly this value, for all values where such
+     * an m below 2^53 exists, which covers nearly all measured values. Falls back to Double.toString otherwise.
+     */
+    private void appendDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("InfluxDB does not accept " + value);
+        }
+        double abs = Math.abs(value);
+        for (int k = 0; k < POWERS_OF_TEN.length; k++) {
+            double scaled = abs * POWERS_OF_TEN[k];
+            if (scaled >= MAX_EXACT_DOUBLE) {
+                break;
+            }
+            long m = Math.round(scaled);
+            if (m / POWERS_OF_TEN[k] == abs) {
+                if (value < 0) {
+                    append('-');
+                }
+                appendDecimal(m, k);
+                return;
+            }
+        }
+        appendAscii(Double.toString(value));
+    }
+
+    private void appendDecimal(long m, int scale) {
+        int start = length;
+        appendLong(m);
+        if (scale == 0) {
+            return;
+        }
+        int digits = length - start;
+        if (digits <= scale) {
+            // pad with leading zeros to get at least one integer digit: 5 at scale 3 is 0.005
+            int pad = scale - digits + 1;
+            ensureCapacity(pad + 1);
+            System.arraycopy(buffer, start, buffer, start + pad, digits);
+            for (int i = 0; i < pad; i++) {
+                buffer[start + i] = '0';
+            }
+            length += pad;
+            digits += pad;
+        }
+        ensureCapacity(1);
+        int point = start + digits - scale;
+        System.arraycopy(buffer, point, buffer, point + 1, length - point);
+        buffer[point] = '.';
+        length++;
+    }
+}
@@ -0,0 +1,144 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cuts a stream of line protocol into consecutive slices that each end on a line boundary, without
+ * decoding or copying lines. Each slice is exposed as an InputStream reading straight from a single shared buffer.
+ * The carriage return of a CRLF line end is dropped, as InfluxDB would take it as part of the timestamp.
+ */
+class LineSlicer {
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    LineSlicer(InputStream in) {
+        this(in, 64 * 1024);
+    }
+
+    LineSlicer(InputStream in, int bufferSize) {
+        this.in = in;
+        // room for a carriage return and the byte after it
+        this.buffer = new byte[Math.max(2, bufferSize)];
+    }
+
+    /**
+     * @return whether there is any content left for another slice
+     * @throws IOException
+     */
+    boolean hasMore() throws IOException {
+        return fill();
+    }
+
+    /**
+     * The returned slice must be read to its end before asking for the next one.
+     * @param maxLines slice ends after this many lines
+     * @param maxBytes slice ends after the line during which this many bytes have been read
+     * @return the next slice
+     */
+    InputStream nextSlice(final int maxLines, final long maxBytes) {
+        return new InputStream() {
+            private int lines = 0;
+            private long bytes = 0;
+            private boolean done = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (done || !fill()) {
+                    done = true;
+                    return -1;
+                }
+                if (len == 0) return 0;
+                if (buffer[pos] == '\r') {
+                    if (pos + 1 == limit) {
+                        lookAhead();
+                    }
+                    if (pos + 1 < limit && buffer[pos + 1] == '\n') {
+                        pos++;
+                    }
+                }
+                int end = Math.min(limit, pos + len);
+                for (int i = pos; i < end; i++) {
+                    if (buffer[i] == '\r' && i > pos) {
+                        // decided at the start of the next read, when the byte after it is known
+                        end = i;
+                        break;
+                    }
+                    if (buffer[i] == '\n') {
+                        lines++;
+                        if (lines >= maxLines || bytes + (i + 1 - pos) >= maxBytes) {
+                            end = i + 1;
+                            done = true;
+                            break;
+                        }
+                    }
+                }
+                int n = end - pos;
+                System.arraycopy(buffer, pos, b, off, n);
+                pos = end;
+                bytes += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Move the last byte of the buffer to its start and read on, so the byte after it can be seen
+     */
+    private void lookAhead() throws IOException {
+        buffer[0] = buffer[pos];
+        pos = 0;
+        limit = 1;
+        while (limit == 1 && !eof) {
+            int n = in.read(buffer, 1, buffer.length - 1);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) return true;
+        if (eof) return false;
+        pos = 0;
+        limit = 0;
+        while (limit == 0) {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            limit = n;
+        }
+        return true;
+    }
+}
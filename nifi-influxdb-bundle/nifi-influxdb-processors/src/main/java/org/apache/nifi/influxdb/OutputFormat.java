@@ -0,0 +1,221 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.nifi.influxdb.InfluxDBServiceInterface.Series;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the series of a streamed query result; a series may arrive over several chunks
+ */
+enum OutputFormat {
+    JSON("application/json") {
+        void write(Series series, boolean first, boolean last, boolean pretty, OutputStream out) throws IOException {
+            JsonGenerator json = generator(out);
+            if (pretty) {
+                json.useDefaultPrettyPrinter();
+            }
+            if (first) {
+                // the series object up to its rows, which are then appended chunk by chunk
+                json.writeRaw("{\"name\":");
+                json.writeObject(series.name);
+                json.writeRaw(",\"tags\":");
+                json.writeObject(series.tags);
+                json.writeRaw(",\"columns\":");
+                json.writeObject(series.columns);
+                json.writeRaw(",\"values\":[");
+            }
+            if (series.values != null) {
+                for (int i = 0; i < series.values.size(); i++) {
+                    if (!first || i > 0) {
+                        json.writeRaw(',');
+                    }
+                    json.writeObject(series.values.get(i));
+                }
+            }
+            if (last) {
+                json.writeRaw("]}");
+            }
+            json.flush();
+        }
+    },
+    NDJSON("application/x-ndjson") {
+        void write(Series series, boolean first, boolean last, boolean pretty, OutputStream out) throws IOException {
+            if (series.values == null) return;
+            JsonGenerator json = generator(out);
+            for (List<?> row : series.values) {
+                json.writeStartObject();
+                json.writeStringField("measurement", series.name);
+                if (series.tags != null) {
+                    for (Map.Entry<String, String> tag : series.tags.entrySet()) {
+                        json.writeStringField(tag.getKey(), tag.getValue());
+                    }
+                }
+                for (int i = 0; i < row.size(); i++) {
+                    json.writeObjectField(series.columns.get(i), row.get(i));
+                }
+                json.writeEndObject();
+                json.writeRaw('\n');
+            }
+            json.flush();
+        }
+    },
+    CSV("text/csv") {
+        void write(Series series, boolean first, boolean last, boolean pretty, OutputStream rawOut) throws IOException {
+            Writer out = new BufferedWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8));
+            if (first) {
+                // tag keys, then the columns
+                String separator = "";
+                if (series.tags != null) {
+                    for (String key : series.tags.keySet()) {
+                        out.write(separator);
+                        csv(key, out);
+                        separator = ",";
+                    }
+                }
+                for (String column : series.columns) {
+                    out.write(separator);
+                    csv(column, out);
+                    separator = ",";
+                }
+                out.write("\r\n");
+            }
+            if (series.values != null) {
+                for (List<?> row : series.values) {
+                    String separator = "";
+                    if (series.tags != null) {
+                        for (String value : series.tags.values()) {
+                            out.write(separator);
+                            csv(value, out);
+                            separator = ",";
+                        }
+                    }
+                    for (Object value : row) {
+                        out.write(separator);
+                        csv(value, out);
+                        separator = ",";
+                    }
+                    out.write("\r\n");
+                }
+            }
+            out.flush();
+        }
+    },
+    /**
+     * Numbers are written as floats, InfluxDB returns float fields without a fraction as integers so integer
+     * fields cannot be told apart. Columns other than time become fields, group by tags become tags.
+     */
+    LineProtocol("text/plain") {
+        TimeUnit epoch() {
+            return TimeUnit.NANOSECONDS;
+        }
+
+        void write(Series series, boolean first, boolean last, boolean pretty, OutputStream out) throws IOException {
+            if (series.values == null) return;
+            int time = series.columns.indexOf("time");
+            LineProtocolEncoder encoder = LineProtocolEncoder.get();
+            for (List<?> row : series.values) {
+                encoder.measurement(series.name).tags(series.tags);
+                boolean fields = false;
+                for (int i = 0; i < row.size(); i++) {
+                    Object value = row.get(i);
+                    if (i == time || value == null) continue;
+                    String key = series.columns.get(i);
+                    if (value instanceof Number) {
+                        encoder.field(key, ((Number) value).doubleValue());
+                    } else if (value instanceof Boolean) {
+                        encoder.field(key, (Boolean) value);
+                    } else {
+                        encoder.field(key, value.toString());
+                    }
+                    fields = true;
+                }
+                if (!fields) {
+                    // a row without values, e.g. a field only other series have
+                    encoder.discardPoint();
+                    continue;
+                }
+                if (time >= 0 && row.get(time) instanceof Number) {
+                    encoder.timestamp(((Number) row.get(time)).longValue());
+                }
+                encoder.end();
+                if (encoder.length() >= 64 * 1024) {
+                    out.write(encoder.buffer(), 0, encoder.length());
+                    encoder.reset();
+                }
+            }
+            out.write(encoder.buffer(), 0, encoder.length());
+        }
+    };
+
+    private final String contentType;
+
+    OutputFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    String contentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the unit to get times in, or null for RFC3339 time strings
+     */
+    TimeUnit epoch() {
+        return null;
+    }
+
+    /**
+     * @param series a chunk of the series
+     * @param first whether this is the first chunk of the series
+     * @param last whether this is the last chunk of the series
+     * @param pretty
+     * @param out
+     */
+    abstract void write(Series series, boolean first, boolean last, boolean pretty, OutputStream out) throws IOException;
+
+    /**
+     * @return a UTF-8 generator writing to the stream; the factory recycles its buffers per thread
+     */
+    static JsonGenerator generator(OutputStream out) throws IOException {
+        JsonGenerator json = QueryResultParser.mapper.getFactory().createGenerator(out);
+        json.setRootValueSeparator(null);
+        return json;
+    }
+
+    private static void csv(Object value, Writer out) throws IOException {
+        if (value == null) return;
+        String s = value.toString();
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            out.write(s);
+            return;
+        }
+        out.write('"');
+        out.write(s.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
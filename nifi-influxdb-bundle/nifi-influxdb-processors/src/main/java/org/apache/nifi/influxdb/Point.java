@@ -0,0 +1,222 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single InfluxDB point: a measurement, optional tags, one or more typed fields and an optional timestamp.
+ * Field values are kept in primitive arrays; only string fields hold an object reference.
+ * Points are immutable and created with a {@link Builder}:
+ * <pre>
+ * Point p = new Point.Builder("cpu").tag("host", "server01").field("idle", 92.5).field("procs", 312L)
+ *         .time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).build();
+ * </pre>
+ */
+public final class Point {
+
+    public enum FieldType {
+        Long, Double, Boolean, String
+    }
+
+    private static final FieldType[] FIELD_TYPES = FieldType.values();
+
+    private final String measurement;
+    private final String[] tagKeys;
+    private final String[] tagValues;
+    private final String[] fieldKeys;
+    private final byte[] fieldTypes;
+    // long values, double values as raw long bits, booleans as 0 or 1
+    private final long[] fieldValues;
+    // only allocated when the point has string fields
+    private final String[] stringValues;
+    private final long time;
+    private final TimeUnit timeUnit;
+
+    private Point(Builder builder) {
+        this.measurement = builder.measurement;
+        this.tagKeys = Arrays.copyOf(builder.tagKeys, builder.tagCount);
+        this.tagValues = Arrays.copyOf(builder.tagValues, builder.tagCount);
+        this.fieldKeys = Arrays.copyOf(builder.fieldKeys, builder.fieldCount);
+        this.fieldTypes = Arrays.copyOf(builder.fieldTypes, builder.fieldCount);
+        this.fieldValues = Arrays.copyOf(builder.fieldValues, builder.fieldCount);
+        this.stringValues = builder.stringValues == null ? null : Arrays.copyOf(builder.stringValues, builder.fieldCount);
+        this.time = builder.time;
+        this.timeUnit = builder.timeUnit;
+        sortTags();
+    }
+
+    // insertion sort, points rarely have more than a handful of tags
+    private void sortTags() {
+        for (int i = 1; i < tagKeys.length; i++) {
+            String key = tagKeys[i];
+            String value = tagValues[i];
+            int j = i - 1;
+            while (j >= 0 && tagKeys[j].compareTo(key) > 0) {
+                tagKeys[j + 1] = tagKeys[j];
+                tagValues[j + 1] = tagValues[j];
+                j--;
+            }
+            tagKeys[j + 1] = key;
+            tagValues[j + 1] = value;
+        }
+    }
+
+    public String getMeasurement() {
+        return measurement;
+    }
+
+    public int getTagCount() {
+        return tagKeys.length;
+    }
+
+    /**
+     * Tags are ordered by key
+     */
+    public String getTagKey(int i) {
+        return tagKeys[i];
+    }
+
+    public String getTagValue(int i) {
+        return tagValues[i];
+    }
+
+    public int getFieldCount() {
+        return fieldKeys.length;
+    }
+
+    public String getFieldKey(int i) {
+        return fieldKeys[i];
+    }
+
+    public FieldType getFieldType(int i) {
+        return FIELD_TYPES[fieldTypes[i]];
+    }
+
+    public long getLongField(int i) {
+        return fieldValues[i];
+    }
+
+    public double getDoubleField(int i) {
+        return Double.longBitsToDouble(fieldValues[i]);
+    }
+
+    public boolean getBooleanField(int i) {
+        return fieldValues[i] != 0;
+    }
+
+    public String getStringField(int i) {
+        return stringValues[i];
+    }
+
+    public boolean hasTime() {
+        return timeUnit != null;
+    }
+
+    public long getTime(TimeUnit unit) {
+        return unit.convert(time, timeUnit);
+    }
+
+    public static class Builder {
+        private final String measurement;
+        private String[] tagKeys = new String[4];
+        private String[] tagValues = new String[4];
+        private int tagCount = 0;
+        private String[] fieldKeys = new String[4];
+        private byte[] fieldTypes = new byte[4];
+        private long[] fieldValues = new long[4];
+        private String[] stringValues;
+        private int fieldCount = 0;
+        private long time;
+        private TimeUnit timeUnit;
+
+        public Builder(String measurement) {
+            if (measurement == null || measurement.isEmpty()) {
+                throw new IllegalArgumentException("Measurement name is required");
+            }
+            this.measurement = measurement;
+        }
+
+        public Builder tag(String key, String value) {
+            if (tagCount == tagKeys.length) {
+                tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+                tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+            }
+            tagKeys[tagCount] = key;
+            tagValues[tagCount] = value;
+            tagCount++;
+            return this;
+        }
+
+        public Builder field(String key, long value) {
+            addField(key, FieldType.Long, value);
+            return this;
+        }
+
+        public Builder field(String key, double value) {
+            addField(key, FieldType.Double, Double.doubleToRawLongBits(value));
+            return this;
+        }
+
+        public Builder field(String key, boolean value) {
+            addField(key, FieldType.Boolean, value ? 1 : 0);
+            return this;
+        }
+
+        public Builder field(String key, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Field " + key + " has no value");
+            }
+            int i = addField(key, FieldType.String, 0);
+            if (stringValues == null) {
+                stringValues = new String[fieldKeys.length];
+            }
+            stringValues[i] = value;
+            return this;
+        }
+
+        public Builder time(long time, TimeUnit unit) {
+            this.time = time;
+            this.timeUnit = unit;
+            return this;
+        }
+
+        public Point build() {
+            if (fieldCount == 0) {
+                throw new IllegalArgumentException("Point " + measurement + " needs at least one field");
+            }
+            return new Point(this);
+        }
+
+        private int addField(String key, FieldType type, long value) {
+            if (fieldCount == fieldKeys.length) {
+                int size = fieldCount * 2;
+                fieldKeys = Arrays.copyOf(fieldKeys, size);
+                fieldTypes = Arrays.copyOf(fieldTypes, size);
+                fieldValues = Arrays.copyOf(fieldValues, size);
+                if (stringValues != null) {
+                    stringValues = Arrays.copyOf(stringValues, size);
+                }
+            }
+            fieldKeys[fieldCount] = key;
+            fieldTypes[fieldCount] = (byte) type.ordinal();
+            fieldValues[fieldCount] = value;
+            return fieldCount++;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches raw query responses for a fixed time, evicting the least recently used responses once they take up more
+ * than the maximum size. Concurrent loads of the same key share a single request: the first caller loads, the others
+ * wait for its response. Responses are kept as bytes, so every caller gets its own copy of the parsed result.
+ */
+class QueryCache {
+
+    interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private static class Entry {
+        final byte[] body;
+        final long expires;
+
+        Entry(byte[] body, long expires) {
+            this.body = body;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long maxBytes;
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<byte[]>> loading = new ConcurrentHashMap<>();
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    QueryCache(long ttlMillis, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached response for the key, or the response of the loader, which is then cached
+     */
+    byte[] get(final String key, final Loader loader) throws IOException {
+        byte[] cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                byte[] body = loader.load();
+                // cache before leaving the loading map, so no caller in between loads the same key again
+                put(key, body);
+                return body;
+            }
+        });
+        FutureTask<byte[]> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            misses.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+            running = task;
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for query " + key);
+        }
+    }
+
+    private synchronized byte[] lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            bytes -= entry.body.length;
+            return null;
+        }
+        return entry.body;
+    }
+
+    private synchronized void put(String key, byte[] body) {
+        if (body.length > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(body, System.currentTimeMillis() + ttlMillis));
+        if (previous != null) {
+            bytes -= previous.body.length;
+        }
+        bytes += body.length;
+        long now = System.currentTimeMillis();
+        Iterator<Entry> lru = entries.values().iterator();
+        while (bytes > maxBytes && lru.hasNext()) {
+            Entry entry = lru.next();
+            lru.remove();
+            bytes -= entry.body.length;
+            if (entry.expires > now) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of responses removed to make room before they expired
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return whether the query only reads, so its response may be cached
+     */
+    static boolean isCacheable(String query) {
+        for (String statement : statements(query)) {
+            String s = statement.toUpperCase(Locale.ROOT);
+            if (!(s.startsWith("SELECT") || s.startsWith("SHOW")) || s.matches("(?s).*\\sINTO\\s.*")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the statements of the query, trimmed and without empty ones, not splitting on semicolons inside quotes
+     */
+    static List<String> statements(String query) {
+        List<String> statements = new ArrayList<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ';';
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                String statement = query.substring(start, i).trim();
+                if (!statement.isEmpty()) {
+                    statements.add(statement);
+                }
+                start = i + 1;
+            }
+        }
+        if (quote != 0 && start < query.length()) {
+            // unterminated quote, the rest is one statement
+            String statement = query.substring(start).trim();
+            if (!statement.isEmpty()) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * @return the query with runs of whitespace outside of quotes collapsed to a single space
+     */
+    static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            space = false;
+            normalized.append(c);
+            if (c == '\\' && quote != 0 && i + 1 < query.length()) {
+                normalized.append(query.charAt(++i));
+            } else if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses query responses with a streaming JSON parser, handing every series to a handler as soon as it has been read.
+ * Handles both a single response object and the sequence of objects InfluxDB sends for a chunked query,
+ * where a series may be split over several chunks. Only one series is held in memory at a time.
+ * Alternatively, {@link #parseColumnar} reads the rows straight into {@link ColumnarSeries} columns.
+ */
+class QueryResultParser {
+
+    static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = mapper.getFactory();
+
+    private static final TypeReference<Map<String, String>> TAGS = new TypeReference<Map<String, String>>() {};
+    private static final TypeReference<List<String>> COLUMNS = new TypeReference<List<String>>() {};
+    private static final TypeReference<List<List<?>>> VALUES = new TypeReference<List<List<?>>>() {};
+
+    private final InfluxDBServiceInterface.SeriesHandler handler;
+    // collects the series when parsing into columns, instead of handing rows to a handler
+    private final List<ColumnarSeries> columnar;
+    // series whose rows continue in the next chunk
+    private ColumnarSeries.Builder partial;
+
+    QueryResultParser(InfluxDBServiceInterface.SeriesHandler handler) {
+        this.handler = handler;
+        this.columnar = null;
+    }
+
+    private QueryResultParser(List<ColumnarSeries> columnar) {
+        this.handler = new InfluxDBServiceInterface.SeriesHandler() {
+            @Override
+            public void series(int statement, InfluxDBServiceInterface.Series series, boolean partial) {
+            }
+
+            @Override
+            public void error(int statement, String error) {
+                throw new IllegalArgumentException(statement < 0 ? error : "Statement " + statement + ": " + error);
+            }
+        };
+        this.columnar = columnar;
+    }
+
+    /**
+     * @return all series of the response, in order, with their rows in columns
+     * @throws IllegalArgumentException when InfluxDB returned an error for the query or one of its statements
+     */
+    static List<ColumnarSeries> parseColumnar(InputStream in) throws IOException {
+        List<ColumnarSeries> series = new ArrayList<>();
+        QueryResultParser parser = new QueryResultParser(series);
+        parser.parse(in);
+        if (parser.partial != null) {
+            series.add(parser.partial.build());
+        }
+        return series;
+    }
+
+    void parse(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                parseResponse(parser);
+            }
+        }
+    }
+
+    private void parseResponse(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("results".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                int statement = 0;
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parseResult(parser, statement++);
+                }
+            } else if ("error".equals(field)) {
+                // the whole request failed, e.g. the query did not parse
+                handler.error(-1, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * @param statement the statement this result belongs to, unless the result says otherwise
+     */
+    private void parseResult(JsonParser parser, int statement) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("statement_id".equals(field)) {
+                statement = parser.getIntValue();
+            } else if ("series".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parseSeries(parser, statement);
+                }
+            } else if ("error".equals(field)) {
+                handler.error(statement, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseSeries(JsonParser parser, int statement) throws IOException {
+        InfluxDBServiceInterface.Series series = new InfluxDBServiceInterface.Series();
+        ColumnarSeries.Builder columns = null;
+        boolean partial = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "name":
+                    series.name = parser.getText();
+                    break;
+                case "tags":
+                    series.tags = mapper.readValue(parser, TAGS);
+                    break;
+                case "columns":
+                    series.columns = mapper.readValue(parser, COLUMNS);
+                    break;
+                case "values":
+                    if (columnar == null) {
+                        series.values = mapper.readValue(parser, VALUES);
+                    } else {
+                        columns = builder(statement, series);
+                        parseRows(parser, columns);
+                    }
+                    break;
+                case "partial":
+                    partial = parser.getBooleanValue();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (columnar == null) {
+            handler.series(statement, series, partial);
+            return;
+        }
+        if (columns == null) {
+            columns = builder(statement, series);
+        }
+        if (partial) {
+            this.partial = columns;
+        } else {
+            this.partial = null;
+            columnar.add(columns.build());
+        }
+    }
+
+    /**
+     * @return the builder of the series continued from the previous chunk, or a new one
+     */
+    private ColumnarSeries.Builder builder(int statement, InfluxDBServiceInterface.Series series) {
+        if (partial != null) {
+            if (partial.isSameSeries(series.name, series.tags)) {
+                return partial;
+            }
+            columnar.add(partial.build());
+            partial = null;
+        }
+        return new ColumnarSeries.Builder(statement, series.name, series.tags, series.columns);
+    }
+
+    private static void parseRows(JsonParser parser, ColumnarSeries.Builder columns) throws IOException {
+        while (parser.nextToken() == JsonToken.START_ARRAY) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                switch (token) {
+                    case VALUE_NUMBER_INT:
+                        if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                            columns.add(parser.getDoubleValue());
+                        } else {
+                            columns.add(parser.getLongValue());
+                        }
+                        break;
+                    case VALUE_NUMBER_FLOAT:
+                        columns.add(parser.getDoubleValue());
+                        break;
+                    case VALUE_TRUE:
+                    case VALUE_FALSE:
+                        columns.add(parser.getBooleanValue());
+                        break;
+                    case VALUE_STRING:
+                        columns.add(parser.getText());
+                        break;
+                    case VALUE_NULL:
+                        columns.addNull();
+                        break;
+                    default:
+                        // InfluxDB only returns scalars, skip anything else
+                        parser.skipChildren();
+                        columns.addNull();
+                }
+            }
+            columns.endRow();
+        }
+    }
+}
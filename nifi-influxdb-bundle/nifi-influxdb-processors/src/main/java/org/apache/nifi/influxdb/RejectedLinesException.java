@@ -0,0 +1,84 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when InfluxDB rejected some lines of a write while all other lines were written.
+ * Lines are numbered from 0 in the order they were given to the write call, so for a write of points
+ * line i is the i-th point.
+ */
+public class RejectedLinesException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static class RejectedLine implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int number;
+        private final String line;
+        private final String error;
+
+        public RejectedLine(int number, String line, String error) {
+            this.number = number;
+            this.line = line;
+            this.error = error;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return the rejected line, without its line terminator
+         */
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * @return the error InfluxDB returned for the line
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final List<RejectedLine> rejected;
+    private final int lines;
+
+    public RejectedLinesException(List<RejectedLine> rejected, int lines) {
+        // never include the lines themselves, this message ends up in logs and bulletins
+        super("InfluxDB rejected " + rejected.size() + " of " + lines + " lines, first error: " + rejected.get(0).getError());
+        this.rejected = Collections.unmodifiableList(rejected);
+        this.lines = lines;
+    }
+
+    public List<RejectedLine> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return total number of lines in the write, rejected or not
+     */
+    public int getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,123 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends line protocol to the UDP input of InfluxDB, fire and forget. Whole lines are packed into datagrams of at
+ * most the max payload size, straight from the caller's buffer. The channel is non-blocking: a datagram the
+ * socket has no room for is dropped and counted, as is a line that does not fit a datagram at all.
+ * InfluxDB never answers, so rejected lines go unnoticed; database and precision are those configured for the
+ * UDP input on the server.
+ */
+class UdpSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpSender.class);
+
+    // largest payload of an IPv4 datagram
+    static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramChannel channel;
+    private final List<InetSocketAddress> targets;
+    private final int maxPayload;
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param targets every datagram is sent to each of them
+     * @param maxPayload bytes per datagram, keep it below the path MTU to avoid fragmentation
+     */
+    UdpSender(List<InetSocketAddress> targets, int maxPayload) throws IOException {
+        this.targets = new ArrayList<>(targets);
+        this.maxPayload = Math.min(maxPayload, MAX_DATAGRAM);
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Send the lines in the given range of the body, which must end with a complete line
+     */
+    void send(byte[] body, int offset, int length) throws IOException {
+        int end = offset + length;
+        int packet = offset;
+        int line = offset;
+        while (line < end) {
+            int next = line;
+            while (next < end && body[next] != '\n') next++;
+            if (next < end) next++; // include the newline
+            if (next - packet > maxPayload && line > packet) {
+                // the line does not fit in the current datagram anymore
+                datagram(body, packet, line - packet);
+                packet = line;
+            }
+            if (next - packet > maxPayload) {
+                logger.warn("Dropping a line of {} bytes, more than the UDP payload size of {}", next - packet, maxPayload);
+                dropped.incrementAndGet();
+                packet = next;
+            }
+            line = next;
+        }
+        if (packet < end) {
+            datagram(body, packet, end - packet);
+        }
+    }
+
+    private void datagram(byte[] body, int offset, int length) throws IOException {
+        for (InetSocketAddress target : targets) {
+            if (channel.send(ByteBuffer.wrap(body, offset, length), target) == 0) {
+                dropped.incrementAndGet();
+            } else {
+                packets.incrementAndGet();
+                bytes.addAndGet(length);
+            }
+        }
+    }
+
+    long getPackets() {
+        return packets.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return number of datagrams the socket had no room for, plus lines too large for a datagram
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException x) {
+            logger.warn("Error closing UDP channel", x);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded in-memory queue of encoded line protocol points, sent to InfluxDB in batches by background flusher threads.
+ * A batch is sent as soon as it reaches the max point count or the max byte size, or when the linger time
+ * since its first point has passed, whichever comes first.
+ * <p>
+ * A batch that fails in the background is not retried here; its error is rethrown by the next
+ * {@link #checkFailed()} or {@link #flush()}, so callers learn that points they already handed over were lost.
+ */
+class WriteBuffer {
+
+    enum FullStrategy {
+        Block, Fail
+    }
+
+    /**
+     * Receives each batch as a single line protocol body, every point terminated by a newline.
+     */
+    interface Sink {
+        void send(byte[] body, int length, int points);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBuffer.class);
+
+    private final BlockingQueue<Entry> queue;
+    private final Sink sink;
+    private final int maxPoints;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final FullStrategy fullStrategy;
+    private final List<Thread> flushers = new ArrayList<>();
+    // points added but not sent yet, per flush epoch, guarded by itself
+    private final TreeMap<Long, Integer> pending = new TreeMap<>();
+    private long epoch = 0;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile boolean closed = false;
+
+    WriteBuffer(String name, Sink sink, int capacity, int maxPoints, int maxBytes, long lingerMillis,
+                int flushThreads, FullStrategy fullStrategy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sink = sink;
+        this.maxPoints = maxPoints;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.fullStrategy = fullStrategy;
+        for (int i = 0; i < flushThreads; i++) {
+            Thread t = new Thread(new Flusher(), name + "-flusher-" + i);
+            t.setDaemon(true);
+            flushers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * A queued point and the flush epoch it was added in
+     */
+    private static class Entry {
+        final byte[] point;
+        final long epoch;
+
+        Entry(byte[] point, long epoch) {
+            this.point = point;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Queue a single encoded point, which must end with a newline
+     * @param point
+     */
+    void add(byte[] point) {
+        if (closed) {
+            throw new IllegalStateException("Write buffer is closed");
+        }
+        long added;
+        synchronized (pending) {
+            added = epoch;
+            Integer count = pending.get(added);
+            pending.put(added, count == null ? 1 : count + 1);
+        }
+        try {
+            if (fullStrategy == FullStrategy.Block) {
+                queue.put(new Entry(point, added));
+            } else if (!queue.offer(new Entry(point, added))) {
+                throw new IllegalStateException("Write buffer is full, dropping point");
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            done(added, 1);
+            throw new IllegalStateException("Interrupted while waiting for space in write buffer", x);
+        } catch (RuntimeException x) {
+            done(added, 1);
+            throw x;
+        }
+    }
+
+    /**
+     * Rethrow the error of a batch that failed since the last check
+     * @throws RuntimeException when a batch of buffered points could not be written
+     */
+    void checkFailed() {
+        Exception x = failure.getAndSet(null);
+        if (x != null) {
+            throw new RuntimeException("Writing buffered points failed, they were dropped: " + x.getMessage(), x);
+        }
+    }
+
+    /**
+     * Send everything queued so far on the calling thread and wait for the batches the flushers are still
+     * sending of points added before this call; points added meanwhile are not waited for
+     * @throws RuntimeException when a batch of buffered points could not be written
+     */
+    void flush() {
+        long target;
+        synchronized (pending) {
+            target = epoch++;
+        }
+        Batch batch = new Batch();
+        Entry entry;
+        // only what is queued now, points added meanwhile are left to the flushers
+        for (int queued = queue.size(); queued > 0 && (entry = queue.poll()) != null; queued--) {
+            if (!batch.fits(entry.point)) {
+                batch.send();
+            }
+            batch.add(entry);
+        }
+        batch.send();
+        synchronized (pending) {
+            while (!pending.headMap(target, true).isEmpty()) {
+                try {
+                    pending.wait(100);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while flushing the write buffer", x);
+                }
+            }
+        }
+        checkFailed();
+    }
+
+    /**
+     * Stop accepting points, drain the queue and stop the flusher threads
+     */
+    void close() {
+        closed = true;
+        for (Thread t : flushers) {
+            t.interrupt();
+        }
+        for (Thread t : flushers) {
+            try {
+                t.join(lingerMillis + 1000);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        try {
+            flush();
+        } catch (RuntimeException x) {
+            logger.error("Error writing buffered points on close", x);
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    private void done(long added, int points) {
+        synchronized (pending) {
+            int left = pending.get(added) - points;
+            if (left > 0) {
+                pending.put(added, left);
+            } else {
+                pending.remove(added);
+                pending.notifyAll();
+            }
+        }
+    }
+
+    private class Batch {
+        private byte[] body = new byte[Math.min(maxBytes, 64 * 1024)];
+        private int length = 0;
+        private int points = 0;
+        // points per flush epoch, usually just one
+        private final TreeMap<Long, Integer> epochs = new TreeMap<>();
+
+        boolean fits(byte[] point) {
+            return points == 0 || (points < maxPoints && length + point.length <= maxBytes);
+        }
+
+        boolean isFull() {
+            return points >= maxPoints || length >= maxBytes;
+        }
+
+        void add(Entry entry) {
+            byte[] point = entry.point;
+            Integer count = epochs.get(entry.epoch);
+            epochs.put(entry.epoch, count == null ? 1 : count + 1);
+            if (length + point.length > body.length) {
+                byte[] grown = new byte[Math.max(body.length * 2, length + point.length)];
+                System.arraycopy(body, 0, grown, 0, length);
+                body = grown;
+            }
+            System.arraycopy(point, 0, body, length, point.length);
+            length += point.length;
+            points++;
+        }
+
+        void send() {
+            if (points == 0) return;
+            try {
+                sink.send(body, length, points);
+            } catch (Exception x) {
+                logger.error("Error writing batch of " + points + " buffered points (" + length + " bytes)", x);
+                failure.compareAndSet(null, x);
+            } finally {
+                for (Map.Entry<Long, Integer> epoch : epochs.entrySet()) {
+                    done(epoch.getKey(), epoch.getValue());
+                }
+                epochs.clear();
+                length = 0;
+                points = 0;
+            }
+        }
+    }
+
+    private class Flusher implements Runnable {
+        @Override
+        public void run() {
+            Batch batch = new Batch();
+            Entry carry = null;
+            while (!closed) {
+                try {
+                    Entry first = carry != null ? carry : queue.poll(lingerMillis, TimeUnit.MILLISECONDS);
+                    carry = null;
+                    if (first == null) continue;
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + lingerMillis;
+                    while (!batch.isFull()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        Entry next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                        if (next == null) break;
+                        if (!batch.fits(next.point)) {
+                            carry = next;
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    batch.send();
+                } catch (InterruptedException x) {
+                    // closing, whatever is left in the queue is drained by close()
+                    break;
+                }
+            }
+            batch.send();
+            if (carry != null) {
+                batch.add(carry);
+                batch.send();
+            }
+        }
+    }
+}
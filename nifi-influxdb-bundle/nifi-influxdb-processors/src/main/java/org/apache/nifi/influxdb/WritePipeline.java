@@ -0,0 +1,315 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.nifi.stream.io.ByteArrayOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a write as several requests in flight at once on a fixed number of lanes, instead of one request per
+ * calling thread. The body is split on line boundaries into one part per lane; when series order is preserved,
+ * every point is routed to the lane picked by the hash of its series key (measurement and tags), so points of
+ * the same series are never reordered. Each lane sends its parts one after the other, and the caller waits until
+ * all parts of its write were sent, so failures are reported to the caller. Writes block while too many parts
+ * are waiting.
+ */
+class WritePipeline {
+
+    interface Sink {
+        /**
+         * @throws RejectedLinesException when InfluxDB rejected some of the lines, numbered from 0 within the part
+         */
+        void send(byte[] body, int offset, int length);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(WritePipeline.class);
+
+    // parts waiting per lane, on top of the one each lane is sending
+    private static final int QUEUED_PER_LANE = 2;
+
+    private final Sink sink;
+    private final ExecutorService[] lanes;
+    private final boolean ordered;
+    private final Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    WritePipeline(final String name, Sink sink, int parallelism, boolean ordered) {
+        this.sink = sink;
+        this.ordered = ordered;
+        // fair, so a write waiting for several slots is not overtaken forever by writes needing one
+        this.slots = new Semaphore(parallelism * (QUEUED_PER_LANE + 1), true);
+        this.lanes = new ExecutorService[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            final String laneName = name + "-write-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, laneName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * The lines of a write sent by one lane
+     */
+    private static class Part {
+        final int lane;
+        final byte[] body;
+        final int offset;
+        int length;
+        // number in the whole write of the first line, or of every line when the lines are not contiguous
+        final int firstLine;
+        int[] lines;
+        int lineCount = 0;
+        Future<?> sent;
+
+        Part(int lane, byte[] body, int offset, int firstLine) {
+            this.lane = lane;
+            this.body = body;
+            this.offset = offset;
+            this.firstLine = firstLine;
+        }
+
+        int number(int line) {
+            return lines == null ? firstLine + line : lines[line];
+        }
+    }
+
+    /**
+     * Send the line protocol body on the lanes and wait until every part was sent. The body is not copied,
+     * it must not be changed before this returns.
+     * @param body
+     * @param length
+     * @throws RejectedLinesException when InfluxDB rejected some of the lines, numbered from 0 within the body;
+     * all other lines were written
+     * @throws RuntimeException when a part could not be written; other parts may have been written
+     */
+    void write(byte[] body, int length) {
+        final List<Part> parts = ordered ? splitBySeries(body, length) : splitEvenly(body, length);
+        int lines = 0;
+        for (Part part : parts) {
+            lines += part.lineCount;
+        }
+        RuntimeException failure = null;
+        try {
+            for (Part part : parts) {
+                part.sent = submit(part);
+            }
+        } catch (RuntimeException x) {
+            failure = x;
+        }
+        // parts already queued use the body, wait for them even when queueing the others failed
+        List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+        boolean interrupted = false;
+        for (Part part : parts) {
+            while (part.sent != null) {
+                try {
+                    part.sent.get();
+                    break;
+                } catch (InterruptedException x) {
+                    interrupted = true;
+                } catch (ExecutionException x) {
+                    if (x.getCause() instanceof RejectedLinesException) {
+                        for (RejectedLinesException.RejectedLine line : ((RejectedLinesException) x.getCause()).getRejected()) {
+                            rejected.add(new RejectedLinesException.RejectedLine(part.number(line.getNumber()),
+                                    line.getLine(), line.getError()));
+                        }
+                    } else if (failure == null) {
+                        failure = x.getCause() instanceof RuntimeException ? (RuntimeException) x.getCause()
+                                : new RuntimeException(x.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // a part that failed as a whole fails the write, rejected lines are only reported when all else was written
+        if (failure != null) {
+            throw failure;
+        }
+        if (!rejected.isEmpty()) {
+            Collections.sort(rejected, new Comparator<RejectedLinesException.RejectedLine>() {
+                @Override
+                public int compare(RejectedLinesException.RejectedLine a, RejectedLinesException.RejectedLine b) {
+                    return Integer.compare(a.getNumber(), b.getNumber());
+                }
+            });
+            throw new RejectedLinesException(rejected, lines);
+        }
+    }
+
+    /**
+     * @return the body in contiguous parts of about the same size, split on line boundaries, one per lane at most;
+     * writes start on the lanes in turn, so small writes are spread over all lanes too
+     */
+    private List<Part> splitEvenly(byte[] body, int length) {
+        List<Part> parts = new ArrayList<>(lanes.length);
+        int first = nextLane.getAndIncrement() & Integer.MAX_VALUE;
+        int target = Math.max(1, length / lanes.length);
+        Part part = null;
+        int line = 0;
+        int start = 0;
+        while (start < length) {
+            int end = lineEnd(body, start, length);
+            if (part == null || (end - part.offset > target && parts.size() < lanes.length)) {
+                part = new Part((first + parts.size()) % lanes.length, body, start, line);
+                parts.add(part);
+            }
+            part.length = end - part.offset;
+            part.lineCount++;
+            line++;
+            start = end;
+        }
+        return parts;
+    }
+
+    /**
+     * @return the body in one part per lane, every line in the part of the lane its series key hashes to
+     */
+    private List<Part> splitBySeries(byte[] body, int length) {
+        ByteArrayOutputStream[] split = new ByteArrayOutputStream[lanes.length];
+        int[][] numbers = new int[lanes.length][];
+        int[] counts = new int[lanes.length];
+        int line = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            int keyEnd = -1;
+            while (end < length && body[end] != '\n') {
+                if (keyEnd < 0 && body[end] == ' ' && (end == start || body[end - 1] != '\\')) {
+                    keyEnd = end;
+                }
+                end++;
+            }
+            if (end < length) end++; // include the newline
+            int lane = lane(body, start, keyEnd < 0 ? end : keyEnd);
+            if (split[lane] == null) {
+                split[lane] = new ByteArrayOutputStream(length / lanes.length + 64);
+                numbers[lane] = new int[16];
+            }
+            split[lane].write(body, start, end - start);
+            if (counts[lane] == numbers[lane].length) {
+                numbers[lane] = Arrays.copyOf(numbers[lane], counts[lane] * 2);
+            }
+            numbers[lane][counts[lane]++] = line++;
+            start = end;
+        }
+        List<Part> parts = new ArrayList<>(lanes.length);
+        for (int lane = 0; lane < split.length; lane++) {
+            if (split[lane] != null) {
+                Part part = new Part(lane, split[lane].getUnderlyingBuffer(), 0, 0);
+                part.length = split[lane].size();
+                part.lines = numbers[lane];
+                part.lineCount = counts[lane];
+                parts.add(part);
+            }
+        }
+        return parts;
+    }
+
+    private static int lineEnd(byte[] body, int start, int length) {
+        int end = start;
+        while (end < length && body[end] != '\n') {
+            end++;
+        }
+        return end < length ? end + 1 : end;
+    }
+
+    private int lane(byte[] body, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + body[i];
+        }
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private Future<?> submit(final Part part) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to queue write", x);
+        }
+        queued.incrementAndGet();
+        try {
+            return lanes[part.lane].submit(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    inFlight.incrementAndGet();
+                    try {
+                        sink.send(part.body, part.offset, part.length);
+                    } finally {
+                        inFlight.decrementAndGet();
+                        slots.release();
+                    }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Write pipeline: {} requests queued, {} in flight", queued.get(), inFlight.get());
+                    }
+                }
+            });
+        } catch (RuntimeException x) {
+            queued.decrementAndGet();
+            slots.release();
+            throw x;
+        }
+    }
+
+    void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            try {
+                lane.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    int getQueueDepth() {
+        return queued.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,367 @@
+package org.apache.nifi.influxdb;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only, disk-backed spool for write requests that could not be sent because InfluxDB was unavailable.
+ * Requests are kept in memory-mapped segment files and replayed in order by a background thread,
+ * retrying with exponential backoff until InfluxDB accepts them again.
+ * <p>
+ * Each record is laid out as {@code int length, long spooledAt, byte[length] body}. Once replayed, the length
+ * is negated in place, so a restart resumes where replay left off. Fully replayed segments are deleted.
+ * <p>
+ * Appended records survive a crash of the process right away, they are in the mapped pages; segments are
+ * forced to disk once a second, so a crash of the machine loses at most the last second of spooled writes.
+ * While there is a backlog, its depth and age are logged every minute.
+ */
+class WriteSpool {
+
+    interface Sink {
+        /**
+         * @throws IllegalArgumentException when InfluxDB rejects (part of) the body as bad data, which is then dropped
+         * instead of retried; any other failure is retried
+         */
+        void send(byte[] body, int length);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteSpool.class);
+
+    private static final String SUFFIX = ".spool";
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long INITIAL_RETRY_MILLIS = 1000;
+    private static final long SYNC_MILLIS = 1000;
+    private static final long REPORT_MILLIS = 60000;
+
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final long maxRetryMillis;
+    private final Sink sink;
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private final Thread replayer;
+    private final ScheduledExecutorService syncer;
+    private long nextSequence = 0;
+    private long pendingRecords = 0;
+    private long pendingBytes = 0;
+    private volatile boolean closed = false;
+
+    private static class Segment {
+        final File file;
+        final long sequence;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int writePos = 0;
+        int readPos = 0;
+        // appended to since it was last forced to disk
+        boolean dirty = false;
+
+        Segment(File file, long sequence, int size) throws IOException {
+            this.file = file;
+            this.sequence = sequence;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        boolean fits(int length) {
+            // leave room for the zero length marking the end of the records
+            return writePos + HEADER_SIZE + length + 4 <= capacity();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException x) {
+                logger.warn("Error closing spool segment " + file, x);
+            }
+        }
+    }
+
+    WriteSpool(final String name, final File directory, long maxSize, long maxRetryMillis, Sink sink) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, maxSize);
+        this.maxRetryMillis = maxRetryMillis;
+        this.sink = sink;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        recover();
+        replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, name + "-spool-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-spool-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (getDepth() > 0) {
+                    logger.info("{} write requests ({} bytes) waiting in the spool at {}, the oldest for {} ms",
+                            new Object[]{getDepth(), getDepthBytes(), directory, getAge()});
+                }
+            }
+        }, REPORT_MILLIS, REPORT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reopen segments left by a previous run, skipping records that were already replayed. A segment ends at the
+     * first record that does not fit in it, such as one cut short when the file was truncated.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            long sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            Segment segment = new Segment(file, sequence, 0);
+            int pos = 0;
+            boolean replayed = true;
+            while (pos + HEADER_SIZE <= segment.capacity()) {
+                int length = segment.buffer.getInt(pos);
+                if (length == 0) break;
+                if (length == Integer.MIN_VALUE || Math.abs(length) > segment.capacity() - pos - HEADER_SIZE) {
+                    logger.warn("Spool segment {} is damaged at byte {}, ignoring the rest of it", new Object[]{file, pos});
+                    break;
+                }
+                if (length > 0) {
+                    if (replayed) segment.readPos = pos;
+                    replayed = false;
+                    pendingRecords++;
+                    pendingBytes += length;
+                }
+                pos += HEADER_SIZE + Math.abs(length);
+            }
+            segment.writePos = pos;
+            if (replayed) {
+                segment.readPos = pos;
+            }
+            segments.add(segment);
+            nextSequence = sequence + 1;
+        }
+        if (pendingRecords > 0) {
+            logger.info("Recovered {} spooled write requests ({} bytes) from {}", new Object[]{pendingRecords, pendingBytes, directory});
+        }
+    }
+
+    /**
+     * @return whether there are requests waiting to be replayed; new writes should then be spooled too, to keep their order
+     */
+    synchronized boolean hasBacklog() {
+        return pendingRecords > 0;
+    }
+
+    synchronized void append(byte[] body, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Write spool is closed");
+        }
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || !segment.fits(length)) {
+            int size = Math.max(segmentSize, HEADER_SIZE + length + 4);
+            if (size() + size > maxSize) {
+                throw new IOException("Write spool is full, cannot spool " + length + " bytes");
+            }
+            File file = new File(directory, String.format("%019d", nextSequence) + SUFFIX);
+            segment = new Segment(file, nextSequence++, size);
+            segments.add(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = segment.writePos;
+        buffer.putLong(pos + 4, System.currentTimeMillis());
+        ByteBuffer record = buffer.duplicate();
+        record.position(pos + HEADER_SIZE);
+        record.put(body, offset, length);
+        // the length goes last, so a partially written record is never seen as complete
+        buffer.putInt(pos, length);
+        segment.dirty = true;
+        segment.writePos = pos + HEADER_SIZE + length;
+        pendingRecords++;
+        pendingBytes += length;
+        notifyAll();
+    }
+
+    /**
+     * Force the segments appended to since the last sync to disk
+     */
+    synchronized void sync() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * @return number of write requests waiting to be replayed
+     */
+    synchronized long getDepth() {
+        return pendingRecords;
+    }
+
+    synchronized long getDepthBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return milliseconds since the oldest request waiting to be replayed was spooled, 0 when there is none
+     */
+    synchronized long getAge() {
+        Segment head = head();
+        return head == null ? 0 : System.currentTimeMillis() - head.buffer.getLong(head.readPos + 4);
+    }
+
+    private long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.capacity();
+        }
+        return size;
+    }
+
+    /**
+     * @return the oldest segment with a record left to replay, after deleting fully replayed segments
+     */
+    private Segment head() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.getFirst();
+            if (head.readPos < head.writePos) {
+                return head;
+            }
+            if (segments.size() == 1) {
+                return null; // keep appending to the current segment
+            }
+            segments.removeFirst();
+            head.close();
+            if (!head.file.delete()) {
+                logger.warn("Could not delete replayed spool segment {}", head.file);
+            }
+        }
+        return null;
+    }
+
+    private void replay() {
+        final long initialRetryMillis = Math.min(INITIAL_RETRY_MILLIS, maxRetryMillis);
+        long retryMillis = initialRetryMillis;
+        while (!closed) {
+            Segment segment;
+            int pos;
+            byte[] body;
+            synchronized (this) {
+                segment = head();
+                if (segment == null) {
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    continue;
+                }
+                pos = segment.readPos;
+                body = new byte[segment.buffer.getInt(pos)];
+                ByteBuffer record = segment.buffer.duplicate();
+                record.position(pos + HEADER_SIZE);
+                record.get(body);
+            }
+            try {
+                sink.send(body, body.length);
+                retryMillis = initialRetryMillis;
+            } catch (IllegalArgumentException x) {
+                logger.error("InfluxDB rejected (part of) a spooled write request, dropping the rejected lines", x);
+            } catch (Exception x) {
+                logger.warn("Replaying spooled writes failed, {} requests waiting, retrying in {} ms",
+                        new Object[]{getDepth(), retryMillis});
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ix) {
+                    return;
+                }
+                retryMillis = Math.min(retryMillis * 2, maxRetryMillis);
+                continue;
+            }
+            synchronized (this) {
+                segment.buffer.putInt(pos, -body.length);
+                segment.readPos = pos + HEADER_SIZE + body.length;
+                pendingRecords--;
+                pendingBytes -= body.length;
+                if (pendingRecords == 0) {
+                    logger.info("Replayed all spooled write requests");
+                }
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        syncer.shutdownNow();
+        replayer.interrupt();
+        try {
+            replayer.join(10000);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class EndpointsTest {
+
+    @Test
+    public void testHosts() {
+        Endpoints endpoints = new Endpoints("a, b:8087,", "8086", 1000);
+        assertEquals(2, endpoints.size());
+        assertEquals("http://a:8086", endpoints.all().get(0).url);
+        assertEquals("http://b:8087", endpoints.all().get(1).url);
+    }
+
+    @Test
+    public void testQueriesGoToLeastBusyHealthyHost() {
+        Endpoints endpoints = new Endpoints("a,b,c", "8086", 60000);
+        Endpoints.Endpoint a = endpoints.all().get(0);
+        Endpoints.Endpoint b = endpoints.all().get(1);
+        Endpoints.Endpoint c = endpoints.all().get(2);
+        a.outstanding.set(2);
+        b.outstanding.set(1);
+        endpoints.failed(c, new RuntimeException("connection refused"));
+
+        for (int i = 0; i < 3; i++) {
+            List<Endpoints.Endpoint> order = endpoints.forQuery();
+            assertEquals(b, order.get(0));
+            assertEquals(a, order.get(1));
+            assertEquals(c, order.get(2));
+        }
+        assertEquals(2, endpoints.getHealthy());
+        endpoints.succeeded(c);
+        assertEquals(c, endpoints.forQuery().get(0));
+    }
+}
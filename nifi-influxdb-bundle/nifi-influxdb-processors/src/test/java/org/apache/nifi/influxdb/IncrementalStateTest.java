@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class IncrementalStateTest {
+
+    private static final String QUERY = "SELECT * FROM cpu WHERE $timeFilter";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTimes() {
+        assertEquals(1434055562000000000L, IncrementalState.parseTime("2015-06-11T20:46:02Z"));
+        assertEquals(1434055562123456789L, IncrementalState.parseTime("2015-06-11T20:46:02.123456789Z"));
+        assertEquals(1434055562100000000L, IncrementalState.parseTime("2015-06-11T22:46:02.1+02:00"));
+        assertEquals(1434055562L, IncrementalState.parseTime(1434055562L));
+        assertEquals("2015-06-11T20:46:02.123456789Z", IncrementalState.formatTime(1434055562123456789L));
+    }
+
+    @Test
+    public void testWindowMovesOnAndIsKept() throws IOException {
+        File file = new File(folder.getRoot(), "state.properties");
+        IncrementalState state = new IncrementalState(file, QUERY);
+        assertEquals("SELECT * FROM cpu WHERE time > now() - 3600000ms",
+                state.apply(0, TimeUnit.HOURS.toNanos(1)));
+
+        IncrementalState.Tracker tracker = new IncrementalState.Tracker(null);
+        InfluxDBServiceInterface.Series series = new InfluxDBServiceInterface.Series();
+        series.setColumns(Arrays.asList("time", "value"));
+        series.setValues(Arrays.<List<?>>asList(Arrays.asList("2015-06-11T20:46:02Z", 1),
+                Arrays.asList("2015-06-11T20:46:12Z", 2)));
+        tracker.seen(series);
+        state.advance(tracker.getNewest());
+
+        String expected = "SELECT * FROM cpu WHERE time > '2015-06-11T20:46:07.000000000Z'";
+        assertEquals(expected, state.apply(TimeUnit.SECONDS.toNanos(5), 0));
+        assertEquals(expected, new IncrementalState(file, QUERY).apply(TimeUnit.SECONDS.toNanos(5), 0));
+        // a different query starts over
+        assertEquals(Long.MIN_VALUE, new IncrementalState(file, QUERY + " GROUP BY *").getLastSeen());
+    }
+
+    @Test
+    public void testRangeFilter() {
+        assertEquals("time >= '2015-06-11T20:46:02.000000000Z' AND time < '2015-06-11T20:46:12.000000000Z'",
+                IncrementalState.rangeFilter(1434055562000000000L, 1434055572000000000L));
+    }
+}
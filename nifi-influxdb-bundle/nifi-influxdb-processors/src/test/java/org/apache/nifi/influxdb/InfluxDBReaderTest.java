@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class InfluxDBReaderTest {
+
+    private TestRunner testRunner;
+    private QueryService service;
+
+    @Before
+    public void init() throws Exception {
+        testRunner = TestRunners.newTestRunner(InfluxDBReader.class);
+        service = new QueryService();
+        testRunner.addControllerService("influxdb", service);
+        testRunner.enableControllerService(service);
+        testRunner.setProperty(InfluxDBReader.INFLUXDB_SERVICE, "influxdb");
+        testRunner.setProperty(InfluxDBReader.QUERY, "SELECT last(value) FROM cpu WHERE host = '${host}'");
+        testRunner.setProperty(InfluxDBReader.BATCH_SIZE, "10");
+    }
+
+    private void enqueue(String host) {
+        Map<String, String> atts = new HashMap<>();
+        atts.put("host", host);
+        testRunner.enqueue(new byte[0], atts);
+    }
+
+    @Test
+    public void testQueriesOfFlowFilesAreCombined() {
+        enqueue("a");
+        enqueue("b");
+        testRunner.run();
+
+        assertEquals(1, service.queries.size());
+        assertEquals("SELECT last(value) FROM cpu WHERE host = 'a';\nSELECT last(value) FROM cpu WHERE host = 'b'",
+                service.queries.get(0));
+        testRunner.assertTransferCount(InfluxDBReader.ORIGINAL, 2);
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(InfluxDBReader.SUCCESS);
+        assertEquals(2, results.size());
+        results.get(0).assertAttributeEquals("host", "a");
+        assertTrue(new String(results.get(0).toByteArray(), StandardCharsets.UTF_8).contains("\"name\":\"a\""));
+        results.get(1).assertAttributeEquals("host", "b");
+        assertTrue(new String(results.get(1).toByteArray(), StandardCharsets.UTF_8).contains("\"name\":\"b\""));
+    }
+
+    @Test
+    public void testFailedBatchIsQueriedOneByOne() {
+        enqueue("a");
+        enqueue("broken");
+        enqueue("c");
+        testRunner.run();
+
+        assertEquals(4, service.queries.size());
+        testRunner.assertTransferCount(InfluxDBReader.ORIGINAL, 2);
+        testRunner.assertTransferCount(InfluxDBReader.SUCCESS, 2);
+        testRunner.assertTransferCount(InfluxDBReader.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(InfluxDBReader.FAILURE).get(0).assertAttributeEquals("host", "broken");
+    }
+
+    @Test
+    public void testFailedStreamedBatchIsNotSentOutTwice() {
+        testRunner.setProperty(InfluxDBReader.CHUNK_SIZE, "100");
+        enqueue("a");
+        enqueue("broken");
+        enqueue("c");
+        testRunner.run();
+
+        // the batch fails after the series of 'a' was written, which is discarded before querying one by one
+        assertEquals(4, service.queries.size());
+        testRunner.assertTransferCount(InfluxDBReader.ORIGINAL, 2);
+        testRunner.assertTransferCount(InfluxDBReader.FAILURE, 1);
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(InfluxDBReader.SUCCESS);
+        assertEquals(2, results.size());
+        results.get(0).assertAttributeEquals("influxdb.series", "a");
+        results.get(1).assertAttributeEquals("influxdb.series", "c");
+    }
+
+    @Test
+    public void testStreamedBatchIsNotChunked() throws Exception {
+        testRunner.removeControllerService(service);
+        try (StubInfluxDB influxdb = new StubInfluxDB()) {
+            // like InfluxDB 0.9, every chunk is a response of its own, with nothing telling which statement it is for
+            influxdb.chunkedQueryResponse =
+                    "{\"results\":[{\"series\":[{\"name\":\"a\",\"columns\":[\"time\",\"value\"],\"values\":[[1,1]]}]}]}\n" +
+                    "{\"results\":[{\"series\":[{\"name\":\"b\",\"columns\":[\"time\",\"value\"],\"values\":[[1,2]]}]}]}\n";
+            influxdb.queryResponse =
+                    "{\"results\":[{\"series\":[{\"name\":\"a\",\"columns\":[\"time\",\"value\"],\"values\":[[1,1]]}]}," +
+                    "{\"series\":[{\"name\":\"b\",\"columns\":[\"time\",\"value\"],\"values\":[[1,2]]}]}]}";
+            InfluxDBService stubbed = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+            testRunner.setProperty(InfluxDBReader.CHUNK_SIZE, "100");
+            enqueue("a");
+            enqueue("b");
+            testRunner.run();
+
+            testRunner.assertTransferCount(InfluxDBReader.ORIGINAL, 2);
+            List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(InfluxDBReader.SUCCESS);
+            assertEquals(2, results.size());
+            results.get(0).assertAttributeEquals("host", "a");
+            results.get(0).assertAttributeEquals("influxdb.series", "a");
+            results.get(1).assertAttributeEquals("host", "b");
+            results.get(1).assertAttributeEquals("influxdb.series", "b");
+            testRunner.disableControllerService(stubbed);
+        }
+    }
+
+    @Test
+    public void testBatchesAreQueriedConcurrently() {
+        testRunner.setProperty(InfluxDBReader.BATCH_SIZE, "2");
+        testRunner.setProperty(InfluxDBReader.BATCHES_IN_FLIGHT, "2");
+        enqueue("a");
+        enqueue("b");
+        enqueue("broken");
+        enqueue("d");
+        testRunner.run();
+
+        // one request per batch, then the failed batch one by one
+        assertEquals(4, service.queries.size());
+        testRunner.assertTransferCount(InfluxDBReader.ORIGINAL, 3);
+        testRunner.assertTransferCount(InfluxDBReader.SUCCESS, 3);
+        testRunner.assertTransferCount(InfluxDBReader.FAILURE, 1);
+    }
+
+    private void slice(String start, String end, int slices) {
+        // a scheduled query is not evaluated against a flow file
+        testRunner.setValidateExpressionUsage(false);
+        testRunner.removeProperty(InfluxDBReader.BATCH_SIZE);
+        testRunner.setProperty(InfluxDBReader.QUERY, "SELECT * FROM cpu WHERE " + IncrementalState.TIME_FILTER);
+        testRunner.setProperty(InfluxDBReader.TIME_SLICES, String.valueOf(slices));
+        testRunner.setProperty(InfluxDBReader.RANGE_START, start);
+        if (end != null) {
+            testRunner.setProperty(InfluxDBReader.RANGE_END, end);
+        }
+    }
+
+    private List<String> sortedQueries() {
+        List<String> queries = new ArrayList<>(service.queries);
+        Collections.sort(queries);
+        return queries;
+    }
+
+    @Test
+    public void testSlicesCoverTheRangeWithoutGaps() {
+        slice("2015-06-11T00:00:00Z", "2015-06-11T00:00:10Z", 3);
+        testRunner.run();
+
+        assertEquals(Arrays.asList(
+                "SELECT * FROM cpu WHERE time >= '2015-06-11T00:00:00.000000000Z' AND time < '2015-06-11T00:00:03.333333333Z'",
+                "SELECT * FROM cpu WHERE time >= '2015-06-11T00:00:03.333333333Z' AND time < '2015-06-11T00:00:06.666666666Z'",
+                "SELECT * FROM cpu WHERE time >= '2015-06-11T00:00:06.666666666Z' AND time < '2015-06-11T00:00:10.000000000Z'"),
+                sortedQueries());
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(InfluxDBReader.SUCCESS);
+        assertEquals(3, results.size());
+        for (int i = 0; i < 3; i++) {
+            results.get(i).assertAttributeEquals("influxdb.slice", String.valueOf(i));
+            results.get(i).assertAttributeEquals("influxdb.slice.count", "3");
+        }
+    }
+
+    @Test
+    public void testRangeShorterThanSlicesIsSlicedPerNanosecond() {
+        slice("2015-06-11T00:00:00Z", "2015-06-11T00:00:00.000000002Z", 4);
+        testRunner.run();
+
+        assertEquals(Arrays.asList(
+                "SELECT * FROM cpu WHERE time >= '2015-06-11T00:00:00.000000000Z' AND time < '2015-06-11T00:00:00.000000001Z'",
+                "SELECT * FROM cpu WHERE time >= '2015-06-11T00:00:00.000000001Z' AND time < '2015-06-11T00:00:00.000000002Z'"),
+                sortedQueries());
+    }
+
+    @Test
+    public void testRangeMustEndAfterItStarts() {
+        slice("2015-06-11T00:00:10Z", "2015-06-11T00:00:10Z", 2);
+        testRunner.assertNotValid();
+        testRunner.setProperty(InfluxDBReader.RANGE_END, "2015-06-11T00:00:00Z");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testRangeStartingInTheFutureIsNotQueried() {
+        slice("2100-01-01T00:00:00Z", null, 2);
+        testRunner.run();
+
+        assertEquals(0, service.queries.size());
+        testRunner.assertTransferCount(InfluxDBReader.SUCCESS, 0);
+    }
+
+    @Test
+    public void testInterruptedBatchesFailWithoutRetrying() throws Exception {
+        testRunner.setProperty(InfluxDBReader.BATCH_SIZE, "2");
+        testRunner.setProperty(InfluxDBReader.BATCHES_IN_FLIGHT, "2");
+        service = new QueryService() {
+            @Override
+            public Future<Results> queryAsync(String query, boolean pretty, Callback<Results> callback) {
+                queries.add(query);
+                // as if the processor was stopped while the query runs
+                Thread.currentThread().interrupt();
+                return new FutureTask<>(new Callable<Results>() {
+                    @Override
+                    public Results call() {
+                        throw new IllegalStateException("never run");
+                    }
+                });
+            }
+        };
+        testRunner.addControllerService("interrupted", service);
+        testRunner.enableControllerService(service);
+        testRunner.setProperty(InfluxDBReader.INFLUXDB_SERVICE, "interrupted");
+        enqueue("a");
+        enqueue("b");
+        enqueue("c");
+        testRunner.run();
+
+        assertEquals(2, service.queries.size());
+        testRunner.assertAllFlowFilesTransferred(InfluxDBReader.FAILURE, 3);
+    }
+
+    @Test
+    public void testStatements() {
+        assertEquals(1, InfluxDBReader.countStatements("SELECT * FROM cpu"));
+        assertEquals(2, InfluxDBReader.countStatements("SELECT * FROM cpu; SHOW MEASUREMENTS;"));
+        assertEquals(1, InfluxDBReader.countStatements("SELECT * FROM cpu WHERE host = 'a;b'"));
+        assertEquals(0, InfluxDBReader.countStatements(" ; "));
+    }
+
+    /**
+     * Answers every statement with a series named after the host it selects, fails on host 'broken'
+     */
+    static class QueryService extends InfluxDBWriterTest.RecordingService {
+        final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public Results query(String query, boolean pretty) {
+            queries.add(query);
+            if (query.contains("'broken'")) {
+                throw new IllegalArgumentException("error parsing query");
+            }
+            Results results = new Results();
+            results.results = new ArrayList<>();
+            for (String statement : query.split(";")) {
+                String host = statement.substring(statement.indexOf('\'') + 1, statement.lastIndexOf('\''));
+                Series series = new Series();
+                series.name = host;
+                ResultSeries result = new ResultSeries();
+                result.series = Collections.singletonList(series);
+                results.results.add(result);
+            }
+            return results;
+        }
+
+        @Override
+        public void query(String query, int chunkSize, TimeUnit epoch, SeriesHandler handler) throws IOException {
+            queries.add(query);
+            String[] statements = query.split(";");
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i].contains("'broken'")) {
+                    throw new IllegalArgumentException("error parsing query");
+                }
+                Series series = new Series();
+                series.name = statements[i].substring(statements[i].indexOf('\'') + 1, statements[i].lastIndexOf('\''));
+                handler.series(i, series, false);
+            }
+        }
+    }
+}
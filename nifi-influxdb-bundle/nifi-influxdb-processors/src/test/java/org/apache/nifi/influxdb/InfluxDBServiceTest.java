@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class InfluxDBServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestRunner testRunner;
+    private StubInfluxDB influxdb;
+    private InfluxDBService service;
+
+    @Before
+    public void init() throws Exception {
+        testRunner = TestRunners.newTestRunner(InfluxDBWriter.class);
+        influxdb = new StubInfluxDB();
+    }
+
+    @After
+    public void close() {
+        if (service != null) {
+            testRunner.disableControllerService(service);
+        }
+        influxdb.close();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+        for (int i = 0; i < 5; i++) {
+            service.write(Arrays.asList("cpu value=" + i));
+            service.query("SELECT * FROM cpu", false);
+        }
+        assertEquals(5, influxdb.lines().size());
+        assertEquals(1, influxdb.connections());
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.IDLE_TIMEOUT.getName(), "200 millis");
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        service.write(Arrays.asList("cpu value=1"));
+        Thread.sleep(1000);
+        service.write(Arrays.asList("cpu value=2"));
+        assertEquals(2, influxdb.connections());
+    }
+
+    @Test
+    public void testWriteEntityRoundTrip() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("cpu,host=server01 value=").append(i).append('\n');
+        }
+        byte[] body = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+        InfluxDBService.WriteEntity plain = new InfluxDBService.WriteEntity(new ByteArrayInputStream(body), -1);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        plain.write(sent);
+        assertArrayEquals(body, sent.toByteArray());
+        assertEquals(body.length, plain.uncompressed);
+        assertEquals(body.length, plain.sent);
+
+        InfluxDBService.WriteEntity gzipped = new InfluxDBService.WriteEntity(new ByteArrayInputStream(body), 6);
+        sent = new ByteArrayOutputStream();
+        gzipped.write(sent);
+        assertEquals(body.length, gzipped.uncompressed);
+        assertEquals(sent.size(), gzipped.sent);
+        assertTrue(gzipped.sent < body.length);
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray()))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                unzipped.write(buffer, 0, n);
+            }
+        }
+        assertArrayEquals(body, unzipped.toByteArray());
+    }
+
+    @Test
+    public void testOnlyWritesAboveThresholdAreCompressed() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.GZIP.getName(), "true");
+        properties.put(InfluxDBService.COMPRESSION_THRESHOLD.getName(), "1 KB");
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        service.write(Arrays.asList("cpu value=1"));
+        assertEquals(0, influxdb.gzippedWrites.get());
+
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add("cpu,host=server01 value=" + i);
+        }
+        service.write(batch);
+        assertEquals(1, influxdb.gzippedWrites.get());
+        assertEquals(101, influxdb.lines().size());
+        assertEquals("cpu,host=server01 value=99", influxdb.lines().get(100));
+    }
+
+    @Test
+    public void testGzippedQueryResponsesAreDecoded() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.GZIP.getName(), "true");
+        influxdb.gzipResponses = true;
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        assertEquals(1, service.query("SELECT * FROM cpu", false).results.size());
+    }
+
+    @Test
+    public void testPipelinedWriteReportsRejectedLines() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.MAX_IN_FLIGHT.getName(), "3");
+        properties.put(InfluxDBService.PRESERVE_SERIES_ORDER.getName(), "false");
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            batch.add(i == 7 ? "cpu " + StubInfluxDB.BAD : "cpu value=" + i);
+        }
+        try {
+            service.write(batch);
+            fail("line 7 is rejected");
+        } catch (RejectedLinesException x) {
+            assertEquals(12, x.getLines());
+            assertEquals(1, x.getRejected().size());
+            assertEquals(7, x.getRejected().get(0).getNumber());
+        }
+        assertEquals(11, influxdb.lines().size());
+        assertTrue(influxdb.writes.get() > 3);
+    }
+
+    private static List<String> lines(int count, int bad) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(i == bad ? "cpu " + StubInfluxDB.BAD : "cpu value=" + i);
+        }
+        return lines;
+    }
+
+    @Test
+    public void testRejectedLineIsIsolated() throws Exception {
+        service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+        try {
+            service.write(lines(8, 5));
+            fail("line 5 is rejected");
+        } catch (RejectedLinesException x) {
+            assertEquals(8, x.getLines());
+            assertEquals(1, x.getRejected().size());
+            assertEquals(5, x.getRejected().get(0).getNumber());
+            assertEquals("cpu " + StubInfluxDB.BAD, x.getRejected().get(0).getLine());
+        }
+        assertEquals(7, influxdb.lines().size());
+        // halves 0-3 and 4-7, then 4-5 and 6-7, then 4 and 5
+        assertEquals(7, influxdb.writes.get());
+    }
+
+    @Test
+    public void testUnauthorizedWriteIsNotBisected() throws Exception {
+        influxdb.writeStatus = 401;
+        service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+        try {
+            service.write(lines(8, -1));
+            fail("InfluxDB refused the credentials");
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage().contains("401"));
+        }
+        assertEquals(1, influxdb.writes.get());
+    }
+
+    @Test
+    public void testForbiddenWriteFailsWithoutSpooling() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.SPOOL_DIRECTORY.getName(), folder.getRoot().getAbsolutePath());
+        properties.put(InfluxDBService.SPOOL_MAX_RETRY_INTERVAL.getName(), "100 millis");
+        influxdb.writeStatus = 403;
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        try {
+            service.write(lines(3, -1));
+            fail("InfluxDB refused the write");
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage().contains("403"));
+        }
+        assertEquals(0, service.getSpoolDepth());
+
+        // only an unavailable InfluxDB is waited for
+        influxdb.writeStatus = 503;
+        service.write(lines(3, -1));
+        assertEquals(1, service.getSpoolDepth());
+        influxdb.writeStatus = 0;
+        for (int i = 0; i < 100 && influxdb.lines().size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(lines(3, -1), influxdb.lines());
+    }
+
+    @Test
+    public void testOnlyBadRequestIsABadQuery() throws Exception {
+        service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+        influxdb.queryStatus = 400;
+        try {
+            service.query("SELECT", false);
+            fail("the query does not parse");
+        } catch (IllegalArgumentException x) {
+            assertTrue(x.getMessage().contains("400"));
+        }
+        influxdb.queryStatus = 401;
+        try {
+            service.query("SELECT * FROM cpu", false);
+            fail("InfluxDB refused the credentials");
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage().contains("401"));
+        }
+    }
+
+    @Test
+    public void testOnlyCacheableQueriesAreCached() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.QUERY_CACHE_TTL.getName(), "1 min");
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        int queries = influxdb.queries.get();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, service.query("SELECT * FROM cpu WHERE host = 'a;b'", false).results.size());
+        }
+        assertEquals(queries + 1, influxdb.queries.get());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, service.query("DROP MEASUREMENT cpu", false).results.size());
+        }
+        assertEquals(queries + 4, influxdb.queries.get());
+    }
+
+    @Test
+    public void testAllWaitsForEveryHostBeforeFailing() throws Exception {
+        try (StubInfluxDB replica = new StubInfluxDB()) {
+            influxdb.writeDelayMillis = 300;
+            replica.writeStatus = 500;
+            service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb, replica);
+            try {
+                service.write(Arrays.asList("cpu value=1"));
+                fail("the replica failed");
+            } catch (IllegalArgumentException x) {
+                fail("a server error is not bad data");
+            } catch (RuntimeException x) {
+                assertTrue(x.getMessage().contains("500"));
+            }
+            // the slow host's request was complete before the write returned
+            assertEquals(Arrays.asList("cpu value=1"), influxdb.lines());
+        }
+    }
+
+    @Test
+    public void testQuorumToleratesAHostDown() throws Exception {
+        try (StubInfluxDB second = new StubInfluxDB(); StubInfluxDB down = new StubInfluxDB()) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put(InfluxDBService.WRITE_CONSISTENCY.getName(), InfluxDBService.WriteConsistency.Quorum.name());
+            service = StubInfluxDB.enable(testRunner, properties, influxdb, second, down);
+            down.close();
+            service.write(Arrays.asList("cpu value=1", "cpu value=2"));
+            assertEquals(2, influxdb.lines().size());
+            assertEquals(2, second.lines().size());
+
+            second.writeStatus = 503;
+            try {
+                service.write(Arrays.asList("cpu value=3"));
+                fail("only 1 of 3 hosts accepted the write");
+            } catch (RuntimeException x) {
+                assertFalse(x instanceof IllegalArgumentException);
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedLineIsIsolatedOnEveryHost() throws Exception {
+        try (StubInfluxDB replica = new StubInfluxDB()) {
+            service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb, replica);
+            try {
+                service.write(lines(4, 1));
+                fail("line 1 is rejected");
+            } catch (RejectedLinesException x) {
+                assertEquals(1, x.getRejected().size());
+                assertEquals(1, x.getRejected().get(0).getNumber());
+            }
+            assertEquals(Arrays.asList("cpu value=0", "cpu value=2", "cpu value=3"), influxdb.lines());
+            assertEquals(influxdb.lines(), replica.lines());
+        }
+    }
+
+    /**
+     * Counts the outcomes it is told, on the service's threads
+     */
+    private static class Outcomes<T> implements InfluxDBServiceInterface.Callback<T> {
+        final CountDownLatch done;
+        final List<T> completed = Collections.synchronizedList(new ArrayList<T>());
+        final List<Exception> failed = Collections.synchronizedList(new ArrayList<Exception>());
+
+        Outcomes(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void completed(T result) {
+            completed.add(result);
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Exception error) {
+            failed.add(error);
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testAsyncWritesRunConcurrentlyAndCallBack() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(InfluxDBService.ASYNC_THREADS.getName(), "4");
+        influxdb.writeDelayMillis = 200;
+        service = StubInfluxDB.enable(testRunner, properties, influxdb);
+        Outcomes<Void> outcomes = new Outcomes<>(5);
+        List<Future<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Point point = i == 3 ? new Point.Builder("cpu").field("value", StubInfluxDB.BAD).build()
+                    : new Point.Builder("cpu").field("value", (long) i).build();
+            writes.add(service.writeAsync(Collections.singletonList(point), outcomes));
+        }
+        assertTrue(outcomes.done.await(10, TimeUnit.SECONDS));
+        assertEquals(4, outcomes.completed.size());
+        assertEquals(1, outcomes.failed.size());
+        assertTrue(outcomes.failed.get(0) instanceof RejectedLinesException);
+        try {
+            writes.get(3).get();
+            fail("the point is rejected");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof RejectedLinesException);
+        }
+        assertEquals(4, influxdb.lines().size());
+        assertTrue(influxdb.maxConcurrentWrites.get() > 1);
+        assertTrue(influxdb.maxConcurrentWrites.get() <= 4);
+    }
+
+    @Test
+    public void testAsyncQueriesCallBack() throws Exception {
+        service = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+        Outcomes<InfluxDBServiceInterface.Results> outcomes = new Outcomes<>(3);
+        for (int i = 0; i < 3; i++) {
+            service.queryAsync("SELECT * FROM cpu", false, outcomes);
+        }
+        assertTrue(outcomes.done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, outcomes.completed.size());
+        assertEquals(1, outcomes.completed.get(0).results.size());
+
+        influxdb.queryStatus = 500;
+        outcomes = new Outcomes<>(1);
+        Future<InfluxDBServiceInterface.Results> query = service.queryAsync("SELECT * FROM cpu", false, outcomes);
+        assertTrue(outcomes.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, outcomes.failed.size());
+        try {
+            query.get();
+            fail("InfluxDB failed the query");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause().getMessage().contains("500"));
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class InfluxDBWriterTest {
+
+    private TestRunner testRunner;
+    private RecordingService service;
+
+    @Before
+    public void init() throws Exception {
+        testRunner = TestRunners.newTestRunner(InfluxDBWriter.class);
+        service = new RecordingService();
+        testRunner.addControllerService("influxdb", service);
+        testRunner.enableControllerService(service);
+        testRunner.setProperty(InfluxDBWriter.INFLUXDB_SERVICE, "influxdb");
+    }
+
+    @Test
+    public void testAttributesAreBatched() {
+        testRunner.setProperty(InfluxDBWriter.BATCH_SIZE, "10");
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> atts = new HashMap<>();
+            atts.put("influxdb.measurement", "cpu");
+            atts.put("influxdb.value", String.valueOf(i));
+            atts.put("influxdb.tag.host", "server01");
+            testRunner.enqueue(new byte[0], atts);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(InfluxDBWriter.ORIGINAL, 3);
+        assertEquals(1, service.batches.size());
+        assertEquals(3, service.batches.get(0).size());
+        Point point = service.batches.get(0).get(0);
+        assertEquals("cpu", point.getMeasurement());
+        assertEquals("host", point.getTagKey(0));
+        assertEquals("server01", point.getTagValue(0));
+        assertEquals(0.0, point.getDoubleField(0), 0);
+    }
+
+    @Test
+    public void testBatchesAreWrittenConcurrently() {
+        testRunner.setProperty(InfluxDBWriter.BATCH_SIZE, "2");
+        testRunner.setProperty(InfluxDBWriter.BATCHES_IN_FLIGHT, "3");
+        for (String measurement : new String[]{"cpu", "mem", "rejected", "disk", "net"}) {
+            Map<String, String> atts = new HashMap<>();
+            atts.put("influxdb.measurement", measurement);
+            atts.put("influxdb.value", "1");
+            testRunner.enqueue(new byte[0], atts);
+        }
+        testRunner.run();
+
+        assertEquals(3, service.batches.size());
+        assertEquals(1, service.batches.get(2).size());
+        testRunner.assertTransferCount(InfluxDBWriter.ORIGINAL, 4);
+        testRunner.assertTransferCount(InfluxDBWriter.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(InfluxDBWriter.FAILURE).get(0).assertAttributeEquals("influxdb.measurement", "rejected");
+    }
+
+    @Test
+    public void testInvalidValueIsRoutedToFailure() {
+        testRunner.setProperty(InfluxDBWriter.BATCH_SIZE, "10");
+        Map<String, String> good = new HashMap<>();
+        good.put("influxdb.measurement", "cpu");
+        good.put("influxdb.value", "1");
+        testRunner.enqueue(new byte[0], good);
+        Map<String, String> bad = new HashMap<>();
+        bad.put("influxdb.measurement", "cpu");
+        bad.put("influxdb.value", "not a number");
+        testRunner.enqueue(new byte[0], bad);
+        testRunner.run();
+
+        testRunner.assertTransferCount(InfluxDBWriter.ORIGINAL, 1);
+        testRunner.assertTransferCount(InfluxDBWriter.FAILURE, 1);
+        assertEquals(1, service.batches.get(0).size());
+    }
+
+    @Test
+    public void testContentIsStreamedUnchanged() {
+        testRunner.setProperty(InfluxDBWriter.FROM_ATTRIBUTES, "false");
+        String content = "cpu,host=a value=1 1434055562000000000\ncpu,host=b value=2 1434055562000000000\n";
+        testRunner.enqueue(content.getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(InfluxDBWriter.ORIGINAL, 1);
+        testRunner.getFlowFilesForRelationship(InfluxDBWriter.ORIGINAL).get(0).assertContentEquals(content);
+        assertEquals(content, service.streamed.get(0));
+    }
+
+    @Test
+    public void testCrlfContentIsWrittenWithoutCarriageReturns() throws Exception {
+        // removing disables it
+        testRunner.removeControllerService(service);
+        try (StubInfluxDB influxdb = new StubInfluxDB()) {
+            InfluxDBService stubbed = StubInfluxDB.enable(testRunner, new HashMap<String, String>(), influxdb);
+            testRunner.setProperty(InfluxDBWriter.FROM_ATTRIBUTES, "false");
+            testRunner.enqueue("cpu value=1 1434055562000000000\r\ncpu value=2 1434055562000000000\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            testRunner.run();
+
+            testRunner.assertAllFlowFilesTransferred(InfluxDBWriter.ORIGINAL, 1);
+            assertEquals(Arrays.asList("cpu value=1 1434055562000000000", "cpu value=2 1434055562000000000"),
+                    influxdb.lines());
+            testRunner.disableControllerService(stubbed);
+        }
+    }
+
+    @Test
+    public void testCarriageReturnsAreDroppedAcrossBufferBoundaries() throws Exception {
+        String crlf = "a v=1\r\nb s=\"x\ry\"\r\n\r\nc v=3\r";
+        for (int bufferSize = 1; bufferSize < crlf.length() + 2; bufferSize++) {
+            LineSlicer slicer = new LineSlicer(new ByteArrayInputStream(crlf.getBytes(StandardCharsets.UTF_8)), bufferSize);
+            ByteArrayOutputStream sliced = new ByteArrayOutputStream();
+            while (slicer.hasMore()) {
+                StreamUtils.copy(slicer.nextSlice(2, Long.MAX_VALUE), sliced);
+            }
+            // a carriage return not followed by a newline is content
+            assertEquals("a v=1\nb s=\"x\ry\"\n\nc v=3\r", new String(sliced.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testRejectedPointsAreRoutedToFailure() {
+        testRunner.setProperty(InfluxDBWriter.BATCH_SIZE, "10");
+        for (String measurement : new String[]{"cpu", "rejected", "mem"}) {
+            Map<String, String> atts = new HashMap<>();
+            atts.put("influxdb.measurement", measurement);
+            atts.put("influxdb.value", "1");
+            testRunner.enqueue(new byte[0], atts);
+        }
+        testRunner.run();
+
+        testRunner.assertTransferCount(InfluxDBWriter.ORIGINAL, 2);
+        testRunner.assertTransferCount(InfluxDBWriter.FAILURE, 1);
+        MockFlowFile failed = testRunner.getFlowFilesForRelationship(InfluxDBWriter.FAILURE).get(0);
+        failed.assertAttributeEquals("influxdb.measurement", "rejected");
+        failed.assertAttributeEquals("influxdb.error", "bad point");
+    }
+
+    @Test
+    public void testRejectedLinesAreRoutedToFailure() {
+        testRunner.setProperty(InfluxDBWriter.FROM_ATTRIBUTES, "false");
+        String content = "cpu value=1\nrejected value=x\nmem value=2\nrejected value=y\n";
+        testRunner.enqueue(content.getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+
+        testRunner.assertTransferCount(InfluxDBWriter.ORIGINAL, 1);
+        testRunner.assertTransferCount(InfluxDBWriter.FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(InfluxDBWriter.ORIGINAL).get(0).assertContentEquals(content);
+        MockFlowFile failed = testRunner.getFlowFilesForRelationship(InfluxDBWriter.FAILURE).get(0);
+        failed.assertContentEquals("rejected value=x\nrejected value=y\n");
+        failed.assertAttributeEquals("influxdb.rejected.count", "2");
+        failed.assertAttributeEquals("influxdb.error", "bad line");
+    }
+
+    static class RecordingService extends AbstractControllerService implements InfluxDBServiceInterface {
+        final List<List<Point>> batches = new ArrayList<>();
+        final List<String> streamed = new ArrayList<>();
+
+        @Override
+        public void write(String measurement, double value, Map<String, String> tags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(String measurement, double value, Map<String, String> tags, long timestamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(List<String> batch) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(Collection<Point> points) {
+            batches.add(new ArrayList<>(points));
+            List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+            int i = 0;
+            for (Point point : points) {
+                if (point.getMeasurement().equals("rejected")) {
+                    rejected.add(new RejectedLinesException.RejectedLine(i, point.getMeasurement(), "bad point"));
+                }
+                i++;
+            }
+            if (!rejected.isEmpty()) {
+                throw new RejectedLinesException(rejected, points.size());
+            }
+        }
+
+        @Override
+        public void write(InputStream lineProtocol, int maxLines, long maxBytes) throws IOException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = lineProtocol.read(buffer)) != -1) {
+                content.write(buffer, 0, n);
+            }
+            String text = new String(content.toByteArray(), StandardCharsets.UTF_8);
+            streamed.add(text);
+            List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+            String[] lines = text.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].startsWith("rejected")) {
+                    rejected.add(new RejectedLinesException.RejectedLine(i, lines[i], "bad line"));
+                }
+            }
+            if (!rejected.isEmpty()) {
+                throw new RejectedLinesException(rejected, lines.length);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Results query(String query, boolean pretty) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void query(String query, int chunkSize, TimeUnit epoch, SeriesHandler handler) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<ColumnarSeries> queryColumnar(String query, TimeUnit epoch) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> writeAsync(final Collection<Point> points, Callback<Void> callback) {
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    write(points);
+                    return null;
+                }
+            });
+            task.run();
+            return task;
+        }
+
+        @Override
+        public Future<Results> queryAsync(final String query, final boolean pretty, Callback<Results> callback) {
+            FutureTask<Results> task = new FutureTask<>(new Callable<Results>() {
+                @Override
+                public Results call() {
+                    return query(query, pretty);
+                }
+            });
+            task.run();
+            return task;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class LineProtocolEncoderTest {
+
+    private static String encoded(LineProtocolEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.length(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testTagsAreSortedAndEscaped() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("region", "us west");
+        tags.put("host", "a,b");
+        tags.put("az", "1=2");
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.measurement("cpu load").tags(tags).field("value", 0.5).timestamp(1434055562000000000L).end();
+
+        assertEquals("cpu\\ load,az=1\\=2,host=a\\,b,region=us\\ west value=0.5 1434055562000000000\n", encoded(encoder));
+    }
+
+    @Test
+    public void testFieldTypes() {
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.measurement("m").field("l", -42L).field("b", true).field("s", "say \"hi\"").end();
+
+        assertEquals("m l=-42i,b=true,s=\"say \\\"hi\\\"\"\n", encoded(encoder));
+    }
+
+    @Test
+    public void testDoublesRoundTrip() {
+        double[] values = {0, 1, -1, 0.1, 0.005, 123.456, -98.7654321, 1e-7, 1234567890123.25, Math.PI, Double.MAX_VALUE, Double.MIN_VALUE};
+        for (double value : values) {
+            LineProtocolEncoder encoder = LineProtocolEncoder.get();
+            encoder.measurement("m").field("v", value).end();
+            String line = encoded(encoder);
+            double parsed = Double.parseDouble(line.substring("m v=".length(), line.length() - 1));
+            assertEquals(line, value, parsed, 0);
+        }
+    }
+
+    @Test
+    public void testMultiFieldPoint() {
+        Point point = new Point.Builder("disk").tag("path", "/").tag("host", "a")
+                .field("free", 1024L).field("used_percent", 12.5).field("readonly", false)
+                .time(1434055562000L, TimeUnit.MILLISECONDS).build();
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.point(point, TimeUnit.SECONDS);
+
+        assertEquals("disk,host=a,path=/ free=1024i,used_percent=12.5,readonly=false 1434055562\n", encoded(encoder));
+    }
+
+    @Test
+    public void testFailedPointIsDiscarded() {
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.point(new Point.Builder("cpu").field("value", 1.0).build(), TimeUnit.NANOSECONDS);
+        try {
+            encoder.point(new Point.Builder("cpu").tag("host", "a").field("value", Double.NaN).build(), TimeUnit.NANOSECONDS);
+            fail("NaN is not a valid field value");
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+        encoder.point(new Point.Builder("cpu").field("value", 2.0).build(), TimeUnit.NANOSECONDS);
+
+        assertEquals("cpu value=1\ncpu value=2\n", encoded(encoder));
+        assertEquals(2, encoder.points());
+    }
+
+    @Test
+    public void testRawLinesAreTerminated() {
+        LineProtocolEncoder encoder = LineProtocolEncoder.get();
+        encoder.line("a v=1").line("b v=2\n");
+
+        assertEquals("a v=1\nb v=2\n", encoded(encoder));
+        assertEquals(2, encoder.points());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class OutputFormatTest {
+
+    private static InfluxDBServiceInterface.Series series(List<?>... rows) {
+        InfluxDBServiceInterface.Series series = new InfluxDBServiceInterface.Series();
+        series.setName("cpu");
+        series.setTags(Collections.singletonMap("host", "a,b"));
+        series.setColumns(Arrays.asList("time", "value", "state"));
+        series.setValues(Arrays.<List<?>>asList(rows));
+        return series;
+    }
+
+    /**
+     * Write the rows as two chunks of one series
+     */
+    private static String write(OutputFormat format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(series(Arrays.asList(1000000000L, 0.5, "idle")), true, false, false, out);
+        format.write(series(Arrays.asList(2000000000L, 2, null)), false, true, false, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        assertEquals("{\"name\":\"cpu\",\"tags\":{\"host\":\"a,b\"},\"columns\":[\"time\",\"value\",\"state\"]," +
+                "\"values\":[[1000000000,0.5,\"idle\"],[2000000000,2,null]]}", write(OutputFormat.JSON));
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        assertEquals("host,time,value,state\r\n\"a,b\",1000000000,0.5,idle\r\n\"a,b\",2000000000,2,\r\n", write(OutputFormat.CSV));
+    }
+
+    @Test
+    public void testNdjson() throws IOException {
+        assertEquals("{\"measurement\":\"cpu\",\"host\":\"a,b\",\"time\":1000000000,\"value\":0.5,\"state\":\"idle\"}\n" +
+                "{\"measurement\":\"cpu\",\"host\":\"a,b\",\"time\":2000000000,\"value\":2,\"state\":null}\n", write(OutputFormat.NDJSON));
+    }
+
+    @Test
+    public void testLineProtocol() throws IOException {
+        assertEquals("cpu,host=a\\,b value=0.5,state=\"idle\" 1000000000\ncpu,host=a\\,b value=2 2000000000\n",
+                write(OutputFormat.LineProtocol));
+    }
+}
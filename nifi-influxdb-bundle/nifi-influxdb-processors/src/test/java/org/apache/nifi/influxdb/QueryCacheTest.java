@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class QueryCacheTest {
+
+    private static class CountingLoader implements QueryCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+        final int size;
+
+        CountingLoader(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public byte[] load() throws IOException {
+            loads.incrementAndGet();
+            return new byte[size];
+        }
+    }
+
+    @Test
+    public void testHitsAndLeastRecentlyUsedEviction() throws IOException {
+        QueryCache cache = new QueryCache(60000, 100);
+        CountingLoader loader = new CountingLoader(40);
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("a", loader);
+        assertEquals(2, loader.loads.get());
+        assertEquals(1, cache.getHits());
+
+        // c does not fit next to a and b, b was used least recently
+        cache.get("c", loader);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(80, cache.getBytes());
+        cache.get("a", loader);
+        assertEquals(3, loader.loads.get());
+        cache.get("b", loader);
+        assertEquals(4, loader.loads.get());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testExpiry() throws IOException {
+        QueryCache cache = new QueryCache(0, 100);
+        CountingLoader loader = new CountingLoader(10);
+        cache.get("a", loader);
+        cache.get("a", loader);
+        assertEquals(2, loader.loads.get());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testConcurrentIdenticalQueriesShareOneLoad() throws Exception {
+        final QueryCache cache = new QueryCache(60000, 100);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final QueryCache.Loader slow = new QueryCache.Loader() {
+            @Override
+            public byte[] load() throws IOException {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException x) {
+                    throw new IOException(x);
+                }
+                return new byte[]{42};
+            }
+        };
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("q", slow);
+                } catch (IOException x) {
+                    throw new RuntimeException(x);
+                }
+            }
+        });
+        first.start();
+        loading.await();
+        final byte[][] result = new byte[1][];
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = cache.get("q", slow);
+                } catch (IOException x) {
+                    throw new RuntimeException(x);
+                }
+            }
+        });
+        second.start();
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+        assertEquals(1, loads.get());
+        assertEquals(42, result[0][0]);
+    }
+
+    @Test
+    public void testQueryText() {
+        assertTrue(QueryCache.isCacheable("SHOW TAG VALUES WITH KEY = host"));
+        assertTrue(QueryCache.isCacheable("select last(value) from cpu; SELECT * FROM mem"));
+        assertFalse(QueryCache.isCacheable("SELECT mean(value) INTO cpu_1h FROM cpu GROUP BY time(1h)"));
+        assertFalse(QueryCache.isCacheable("SELECT * FROM cpu; DROP MEASUREMENT cpu"));
+        assertTrue(QueryCache.isCacheable("SELECT * FROM cpu WHERE host = 'a;drop'"));
+        assertFalse(QueryCache.isCacheable("SELECT * FROM cpu WHERE host = 'it\\'s;'; DROP MEASUREMENT cpu"));
+        assertEquals(Arrays.asList("SELECT * FROM cpu WHERE host = 'a;b'", "SHOW MEASUREMENTS"),
+                QueryCache.statements(" SELECT * FROM cpu WHERE host = 'a;b' ;; SHOW MEASUREMENTS;"));
+        assertEquals("SELECT * FROM cpu WHERE host = 'a  b'",
+                QueryCache.normalize("  SELECT *\n  FROM   cpu WHERE host = 'a  b'\n"));
+    }
+}
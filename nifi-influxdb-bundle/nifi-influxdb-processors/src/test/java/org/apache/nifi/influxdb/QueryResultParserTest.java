@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class QueryResultParserTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private final InfluxDBServiceInterface.SeriesHandler handler = new InfluxDBServiceInterface.SeriesHandler() {
+        @Override
+        public void series(int statement, InfluxDBServiceInterface.Series series, boolean partial) {
+            events.add(statement + ":" + series.getName() + series.getTags() + series.getColumns() + series.getValues() + (partial ? "..." : ""));
+        }
+
+        @Override
+        public void error(int statement, String error) {
+            events.add(statement + ":error:" + error);
+        }
+    };
+
+    private void parse(String json) throws IOException {
+        new QueryResultParser(handler).parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testSingleResponse() throws IOException {
+        parse("{\"results\":[{\"series\":[{\"name\":\"cpu\",\"tags\":{\"host\":\"a\"},\"columns\":[\"time\",\"value\"]," +
+                "\"values\":[[\"2015-06-11T20:46:02Z\",0.64]]}]},{\"error\":\"database not found\"}]}");
+
+        assertEquals(2, events.size());
+        assertEquals("0:cpu{host=a}[time, value][[2015-06-11T20:46:02Z, 0.64]]", events.get(0));
+        assertEquals("1:error:database not found", events.get(1));
+    }
+
+    @Test
+    public void testChunkedResponse() throws IOException {
+        parse("{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"cpu\",\"columns\":[\"time\",\"value\"]," +
+                "\"values\":[[1,1],[2,2]],\"partial\":true}],\"partial\":true}]}\n" +
+                "{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"cpu\",\"columns\":[\"time\",\"value\"]," +
+                "\"values\":[[3,3.5]]}]}]}\n" +
+                "{\"results\":[{\"statement_id\":1,\"series\":[{\"name\":\"mem\",\"columns\":[\"time\",\"free\"]," +
+                "\"values\":[[1,1024]]}]}]}\n");
+
+        assertEquals(3, events.size());
+        assertEquals("0:cpunull[time, value][[1, 1], [2, 2]]...", events.get(0));
+        assertEquals("0:cpunull[time, value][[3, 3.5]]", events.get(1));
+        assertEquals("1:memnull[time, free][[1, 1024]]", events.get(2));
+    }
+
+    @Test
+    public void testQueryError() throws IOException {
+        parse("{\"error\":\"error parsing query: found EOF\"}");
+
+        assertEquals(1, events.size());
+        assertEquals("-1:error:error parsing query: found EOF", events.get(0));
+    }
+
+    @Test
+    public void testColumnarChunkedResponse() throws IOException {
+        String json = "{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"cpu\",\"tags\":{\"host\":\"a\"}," +
+                "\"columns\":[\"time\",\"value\",\"state\",\"up\"]," +
+                "\"values\":[[1000,1,\"idle\",true],[2000,null,\"busy\",false]],\"partial\":true}],\"partial\":true}]}\n" +
+                "{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"cpu\",\"tags\":{\"host\":\"a\"}," +
+                "\"columns\":[\"time\",\"value\",\"state\",\"up\"],\"values\":[[3000,2.5,\"idle\",true]]}]}]}\n";
+        List<ColumnarSeries> result = QueryResultParser.parseColumnar(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(1, result.size());
+        ColumnarSeries cpu = result.get(0);
+        assertEquals("a", cpu.getTags().get("host"));
+        assertEquals(3, cpu.getRowCount());
+        assertArrayEquals(new long[]{1000, 2000, 3000}, cpu.getTimes());
+        // integers first, promoted once a fraction shows up
+        assertEquals(ColumnarSeries.ColumnType.Double, cpu.getColumnType(1));
+        assertArrayEquals(new double[]{1, 0, 2.5}, cpu.getDoubles(1), 0);
+        assertTrue(cpu.isNull(1, 1));
+        assertArrayEquals(new int[]{0, 1, 0}, cpu.getStringCodes(2));
+        assertEquals("busy", cpu.getString(2, 1));
+        assertEquals("[true, false, true]", Arrays.toString(cpu.getBooleans(3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testColumnarStatementError() throws IOException {
+        String json = "{\"results\":[{\"error\":\"database not found: db\"}]}";
+        QueryResultParser.parseColumnar(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.apache.nifi.util.TestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal InfluxDB HTTP API for tests. Every query returns an empty result unless a response is set, writes are
+ * recorded line by line and a write containing a line with {@link #BAD} is rejected with a 400, like InfluxDB does for unparsable points.
+ */
+class StubInfluxDB implements Closeable {
+
+    static final String BAD = "bad";
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    final AtomicInteger writes = new AtomicInteger();
+    final AtomicInteger queries = new AtomicInteger();
+    final AtomicInteger gzippedWrites = new AtomicInteger();
+    // most writes handled at the same time
+    final AtomicInteger maxConcurrentWrites = new AtomicInteger();
+    private final AtomicInteger concurrentWrites = new AtomicInteger();
+    // when not 0, every write or query is answered with this status
+    volatile int writeStatus = 0;
+    volatile int queryStatus = 0;
+    volatile long writeDelayMillis = 0;
+    volatile boolean gzipResponses = false;
+    // when set, the body of every unchunked or chunked query response
+    volatile String queryResponse = null;
+    volatile String chunkedQueryResponse = null;
+
+    StubInfluxDB() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "stub-influxdb");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(threads);
+        server.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                queries.incrementAndGet();
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                boolean gzip = gzipResponses && accept != null && accept.contains("gzip");
+                if (queryStatus != 0) {
+                    respond(exchange, queryStatus, "{\"error\":\"status " + queryStatus + "\"}", gzip);
+                    return;
+                }
+                String params = exchange.getRequestURI().getRawQuery();
+                String body = params != null && params.contains("chunked=true") ? chunkedQueryResponse : queryResponse;
+                respond(exchange, 200, body != null ? body : "{\"results\":[{}]}", gzip);
+            }
+        });
+        server.createContext("/write", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                writes.incrementAndGet();
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    gzippedWrites.incrementAndGet();
+                    in = new GZIPInputStream(in);
+                }
+                String body = read(in);
+                int concurrent = concurrentWrites.incrementAndGet();
+                while (concurrent > maxConcurrentWrites.get()) {
+                    maxConcurrentWrites.set(concurrent);
+                }
+                if (writeDelayMillis > 0) {
+                    try {
+                        Thread.sleep(writeDelayMillis);
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                concurrentWrites.decrementAndGet();
+                if (writeStatus != 0) {
+                    respond(exchange, writeStatus, "{\"error\":\"status " + writeStatus + "\"}", false);
+                    return;
+                }
+                List<String> written = new ArrayList<>();
+                for (String line : body.split("\n")) {
+                    if (line.contains(BAD)) {
+                        respond(exchange, 400, "{\"error\":\"unable to parse '" + line + "'\"}", false);
+                        return;
+                    }
+                    if (!line.isEmpty()) {
+                        written.add(line);
+                    }
+                }
+                lines.addAll(written);
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    String host() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the lines written so far, in the order they arrived
+     */
+    List<String> lines() {
+        synchronized (lines) {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    /**
+     * @return number of distinct connections requests came in on
+     */
+    int connections() {
+        return clientPorts.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+
+    /**
+     * Add and enable an InfluxDB service with the given properties, plus those needed to reach the hosts
+     */
+    static InfluxDBService enable(TestRunner runner, Map<String, String> properties, StubInfluxDB... hosts)
+            throws InitializationException {
+        StringBuilder list = new StringBuilder();
+        for (StubInfluxDB host : hosts) {
+            list.append(list.length() > 0 ? "," : "").append(host.host());
+        }
+        Map<String, String> all = new HashMap<>(properties);
+        all.put(InfluxDBService.INFLUXDB_HOST.getName(), list.toString());
+        all.put(InfluxDBService.USERNAME.getName(), "user");
+        all.put(InfluxDBService.PASSWORD.getName(), "password");
+        all.put(InfluxDBService.DATABASE_NAME.getName(), "test");
+        InfluxDBService service = new InfluxDBService();
+        runner.addControllerService("influxdb", service, all);
+        // the mock framework only hands the configuration to @OnEnabled, the service reads it on every request too
+        Map<PropertyDescriptor, String> configuration = new HashMap<>();
+        for (Map.Entry<String, String> property : all.entrySet()) {
+            configuration.put(service.getPropertyDescriptor(property.getKey()), property.getValue());
+        }
+        service.onConfigurationChange(new MockConfigurationContext(configuration, null));
+        runner.enableControllerService(service);
+        return service;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body, boolean gzip) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class UdpSenderTest {
+
+    @Test
+    public void testLinesArePackedIntoDatagrams() throws IOException {
+        try (DatagramChannel server = DatagramChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            UdpSender sender = new UdpSender(Collections.singletonList((InetSocketAddress) server.getLocalAddress()), 24);
+            try {
+                byte[] body = ("cpu value=1\ncpu value=2\n" + "a_line_longer_than_the_payload value=3\n" + "mem value=4\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                sender.send(body, 0, body.length);
+
+                assertEquals("cpu value=1\ncpu value=2\n", receive(server));
+                assertEquals("mem value=4\n", receive(server));
+                assertEquals(2, sender.getPackets());
+                assertEquals(36, sender.getBytes());
+                assertEquals(1, sender.getDropped());
+            } finally {
+                sender.close();
+            }
+        }
+    }
+
+    private static String receive(DatagramChannel server) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        server.receive(buffer);
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
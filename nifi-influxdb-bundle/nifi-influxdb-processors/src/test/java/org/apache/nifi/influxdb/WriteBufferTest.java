@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class WriteBufferTest {
+
+    private final List<String> batches = Collections.synchronizedList(new ArrayList<String>());
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private WriteBuffer buffer;
+
+    private final WriteBuffer.Sink recording = new WriteBuffer.Sink() {
+        @Override
+        public void send(byte[] body, int length, int points) {
+            batches.add(new String(body, 0, length, StandardCharsets.UTF_8));
+        }
+    };
+
+    @After
+    public void close() {
+        threads.shutdownNow();
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    private static byte[] point(int i) {
+        return ("cpu value=" + i + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFlushSendsBatchesOfMaxPoints() {
+        buffer = new WriteBuffer("test", recording, 100, 3, 1024, 60000, 0, WriteBuffer.FullStrategy.Fail);
+        for (int i = 0; i < 7; i++) {
+            buffer.add(point(i));
+        }
+        buffer.flush();
+        assertEquals(3, batches.size());
+        assertEquals("cpu value=0\ncpu value=1\ncpu value=2\n", batches.get(0));
+        assertEquals("cpu value=6\n", batches.get(2));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testFullBufferFails() {
+        buffer = new WriteBuffer("test", recording, 2, 10, 1024, 60000, 0, WriteBuffer.FullStrategy.Fail);
+        buffer.add(point(0));
+        buffer.add(point(1));
+        try {
+            buffer.add(point(2));
+            fail("a full buffer takes no more points");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+        buffer.flush();
+        assertEquals(Collections.singletonList("cpu value=0\ncpu value=1\n"), batches);
+    }
+
+    @Test
+    public void testFullBufferBlocks() throws Exception {
+        final CountDownLatch influxdb = new CountDownLatch(1);
+        buffer = new WriteBuffer("test", new WriteBuffer.Sink() {
+            @Override
+            public void send(byte[] body, int length, int points) {
+                try {
+                    influxdb.await();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+                recording.send(body, length, points);
+            }
+        }, 1, 1, 1024, 10, 1, WriteBuffer.FullStrategy.Block);
+        buffer.add(point(0));
+        Thread.sleep(100);
+        // the flusher is stuck sending point 0, point 1 fills the buffer
+        buffer.add(point(1));
+        Future<?> blocked = threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                buffer.add(point(2));
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(blocked.isDone());
+        influxdb.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        buffer.flush();
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    public void testFailedBatchIsReported() throws Exception {
+        buffer = new WriteBuffer("test", new WriteBuffer.Sink() {
+            @Override
+            public void send(byte[] body, int length, int points) {
+                throw new RuntimeException("InfluxDB is down");
+            }
+        }, 100, 10, 1024, 10, 1, WriteBuffer.FullStrategy.Fail);
+        buffer.add(point(0));
+        Thread.sleep(500);
+        try {
+            buffer.checkFailed();
+            fail("the batch sent in the background failed");
+        } catch (RuntimeException x) {
+            assertTrue(x.getMessage().contains("InfluxDB is down"));
+        }
+        // reported once
+        buffer.checkFailed();
+
+        buffer.add(point(1));
+        try {
+            buffer.flush();
+            fail("the batch sent by the flush failed");
+        } catch (RuntimeException x) {
+            assertTrue(x.getMessage().contains("InfluxDB is down"));
+        }
+    }
+
+    @Test
+    public void testFlushReturnsWhileWritesContinue() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        buffer = new WriteBuffer("test", new WriteBuffer.Sink() {
+            @Override
+            public void send(byte[] body, int length, int points) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+                sent.addAndGet(points);
+            }
+        }, 1000, 10, 1024, 5, 2, WriteBuffer.FullStrategy.Block);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        threads.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; writing.get(); i++) {
+                    buffer.add(point(i));
+                }
+            }
+        });
+        Thread.sleep(100);
+        Future<Integer> flushed = threads.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                buffer.flush();
+                return sent.get();
+            }
+        });
+        try {
+            assertTrue(flushed.get(10, TimeUnit.SECONDS) > 0);
+        } finally {
+            writing.set(false);
+        }
+    }
+}
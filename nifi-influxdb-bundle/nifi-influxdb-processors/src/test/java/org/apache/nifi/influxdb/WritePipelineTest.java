@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class WritePipelineTest {
+
+    private final List<List<String>> parts = Collections.synchronizedList(new ArrayList<List<String>>());
+    private final AtomicInteger sending = new AtomicInteger();
+    private final AtomicInteger maxSending = new AtomicInteger();
+    private WritePipeline pipeline;
+
+    /**
+     * Records every part; rejects lines containing "bad" and fails parts containing "down"
+     */
+    private final WritePipeline.Sink sink = new WritePipeline.Sink() {
+        @Override
+        public void send(byte[] body, int offset, int length) {
+            int now = sending.incrementAndGet();
+            while (now > maxSending.get()) {
+                maxSending.set(now);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            sending.decrementAndGet();
+            String[] lines = new String(body, offset, length, StandardCharsets.UTF_8).split("\n");
+            List<String> part = new ArrayList<>();
+            List<RejectedLinesException.RejectedLine> rejected = new ArrayList<>();
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].contains("down")) {
+                    throw new RuntimeException("InfluxDB is down");
+                }
+                if (lines[i].contains("bad")) {
+                    rejected.add(new RejectedLinesException.RejectedLine(i, lines[i], "bad line"));
+                } else {
+                    part.add(lines[i]);
+                }
+            }
+            parts.add(part);
+            if (!rejected.isEmpty()) {
+                throw new RejectedLinesException(rejected, lines.length);
+            }
+        }
+    };
+
+    @After
+    public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    private static byte[] body(String... lines) {
+        StringBuilder body = new StringBuilder();
+        for (String line : lines) {
+            body.append(line).append('\n');
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> written() {
+        List<String> written = new ArrayList<>();
+        synchronized (parts) {
+            for (List<String> part : parts) {
+                written.addAll(part);
+            }
+        }
+        return written;
+    }
+
+    @Test
+    public void testWriteIsSplitOverLanesAndWaitedFor() {
+        pipeline = new WritePipeline("test", sink, 3, false);
+        byte[] body = body("a v=1", "b v=2", "c v=3", "d v=4", "e v=5", "f v=6");
+        pipeline.write(body, body.length);
+
+        assertEquals(3, parts.size());
+        assertEquals(6, written().size());
+        assertTrue(maxSending.get() > 1);
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void testSeriesStayInOrderOnOneLane() {
+        pipeline = new WritePipeline("test", sink, 4, true);
+        byte[] body = body("cpu,host=a v=1", "cpu,host=b v=1", "cpu,host=a v=2", "mem,host=a v=1",
+                "cpu,host=b v=2", "cpu,host=a v=3");
+        pipeline.write(body, body.length);
+
+        assertEquals(6, written().size());
+        for (List<String> part : parts) {
+            if (part.contains("cpu,host=a v=1")) {
+                assertEquals(part.indexOf("cpu,host=a v=1") + 1, part.indexOf("cpu,host=a v=2"));
+                assertEquals(part.indexOf("cpu,host=a v=2") + 1, part.indexOf("cpu,host=a v=3"));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedLinesAreNumberedWithinTheWrite() {
+        for (boolean ordered : new boolean[]{false, true}) {
+            parts.clear();
+            pipeline = new WritePipeline("test", sink, 3, ordered);
+            byte[] body = body("a v=1", "b v=2", "bad", "d v=4", "e v=5", "f v=6", "g bad", "h v=8", "i v=9");
+            try {
+                pipeline.write(body, body.length);
+                fail("lines 2 and 6 are rejected");
+            } catch (RejectedLinesException x) {
+                assertEquals(9, x.getLines());
+                assertEquals(2, x.getRejected().size());
+                assertEquals(2, x.getRejected().get(0).getNumber());
+                assertEquals("bad", x.getRejected().get(0).getLine());
+                assertEquals(6, x.getRejected().get(1).getNumber());
+                assertEquals("g bad", x.getRejected().get(1).getLine());
+            }
+            assertEquals(7, written().size());
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testFailedPartFailsTheWrite() {
+        pipeline = new WritePipeline("test", sink, 3, false);
+        byte[] body = body("a v=1", "b v=2", "c down", "d v=4", "e bad", "f v=6");
+        try {
+            pipeline.write(body, body.length);
+            fail("the part with line 2 failed");
+        } catch (RejectedLinesException x) {
+            fail("a part that failed as a whole takes precedence over rejected lines");
+        } catch (RuntimeException x) {
+            assertEquals("InfluxDB is down", x.getMessage());
+        }
+        // the other parts, including the accepted lines of the part with a rejected line, were written before
+        assertEquals(4, written().size());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.influxdb;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class WriteSpoolTest {
+
+    // int length, long spooledAt
+    private static final int HEADER_SIZE = 12;
+    private static final String RECORD = "cpu value=0\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private WriteSpool spool;
+
+    @After
+    public void close() {
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    /**
+     * @param accepted how many records InfluxDB accepts before it becomes unavailable
+     */
+    private WriteSpool.Sink influxdb(final int accepted) {
+        return new WriteSpool.Sink() {
+            @Override
+            public void send(byte[] body, int length) {
+                String record = new String(body, 0, length, StandardCharsets.UTF_8);
+                if (record.contains("bad")) {
+                    throw new IllegalArgumentException("unable to parse");
+                }
+                if (sent.size() >= accepted) {
+                    throw new RuntimeException("InfluxDB is unavailable");
+                }
+                sent.add(record);
+            }
+        };
+    }
+
+    private static byte[] record(int i) {
+        return RECORD.replace('0', (char) ('0' + i)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void append(int i) throws IOException {
+        spool.append(record(i), 0, RECORD.length());
+    }
+
+    private void awaitDepth(long depth) throws InterruptedException {
+        for (int i = 0; i < 100 && spool.getDepth() != depth; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(depth, spool.getDepth());
+    }
+
+    @Test
+    public void testAppendedRequestsAreReplayedInOrder() throws Exception {
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(Integer.MAX_VALUE));
+        for (int i = 0; i < 5; i++) {
+            append(i);
+        }
+        awaitDepth(0);
+        assertEquals(Arrays.asList("cpu value=0\n", "cpu value=1\n", "cpu value=2\n", "cpu value=3\n", "cpu value=4\n"), sent);
+        assertEquals(0, spool.getAge());
+    }
+
+    @Test
+    public void testRejectedRequestIsDropped() throws Exception {
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(Integer.MAX_VALUE));
+        append(1);
+        spool.append("cpu bad\n".getBytes(StandardCharsets.UTF_8), 0, 8);
+        append(2);
+        awaitDepth(0);
+        assertEquals(Arrays.asList("cpu value=1\n", "cpu value=2\n"), sent);
+    }
+
+    @Test
+    public void testRecoveryResumesWhereReplayLeftOff() throws Exception {
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(1));
+        for (int i = 0; i < 3; i++) {
+            append(i);
+        }
+        awaitDepth(2);
+        assertTrue(spool.hasBacklog());
+        assertTrue(spool.getAge() >= 0);
+        spool.close();
+
+        sent.clear();
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(Integer.MAX_VALUE));
+        awaitDepth(0);
+        assertEquals(Arrays.asList("cpu value=1\n", "cpu value=2\n"), sent);
+    }
+
+    @Test
+    public void testRecoveryStopsAtTruncatedRecord() throws Exception {
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(0));
+        for (int i = 0; i < 3; i++) {
+            append(i);
+        }
+        spool.close();
+        File[] segments = folder.getRoot().listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile segment = new RandomAccessFile(segments[0], "rw")) {
+            // cut the third record in half
+            segment.setLength(2 * (HEADER_SIZE + RECORD.length()) + HEADER_SIZE + 4);
+        }
+
+        spool = new WriteSpool("test", folder.getRoot(), 64 * 1024 * 1024, 50, influxdb(Integer.MAX_VALUE));
+        awaitDepth(0);
+        assertEquals(Arrays.asList("cpu value=0\n", "cpu value=1\n"), sent);
+        // the damaged segment is full, new requests go to a new one
+        append(3);
+        awaitDepth(0);
+        assertEquals("cpu value=3\n", sent.get(2));
+    }
+
+    @Test
+    public void testRecoveryStopsAtGarbageLength() throws Exception {
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(0));
+        append(0);
+        spool.close();
+        try (RandomAccessFile segment = new RandomAccessFile(folder.getRoot().listFiles()[0], "rw")) {
+            segment.seek(HEADER_SIZE + RECORD.length());
+            segment.writeInt(Integer.MAX_VALUE);
+        }
+
+        spool = new WriteSpool("test", folder.getRoot(), 1024 * 1024, 50, influxdb(Integer.MAX_VALUE));
+        awaitDepth(0);
+        assertEquals(Collections.singletonList("cpu value=0\n"), sent);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.jsontransform;
+
+import com.bazaarvoice.jolt.Chainr;
+import com.bazaarvoice.jolt.JsonUtils;
+import org.apache.nifi.processors.jsontransform.model.EvaluationContextEntity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The Jolt chain compiled from the annotation data of a processor. Immutable, and Chainr keeps no state
+ * between transforms, so one instance is shared by all threads.
+ */
+final class CompiledSpec {
+
+    private final String annotationData;
+    private final byte[] hash;
+    private final Chainr chainr;
+
+    private CompiledSpec(String annotationData, byte[] hash, Chainr chainr) {
+        this.annotationData = annotationData;
+        this.hash = hash;
+        this.chainr = chainr;
+    }
+
+    /**
+     * @param annotationData the processor's configuration
+     * @param previous [optional] the spec compiled before, returned when the configuration did not change
+     * @return the compiled spec
+     * @throws RuntimeException when the configuration is not a valid Jolt spec
+     */
+    static CompiledSpec compile(String annotationData, CompiledSpec previous) {
+        if (previous != null && previous.annotationData == annotationData) {
+            return previous;
+        }
+        byte[] hash = hash(annotationData);
+        if (previous != null && Arrays.equals(previous.hash, hash)) {
+            return previous;
+        }
+        EvaluationContextEntity config = JsonUtils.stringToType(annotationData, EvaluationContextEntity.class);
+        Chainr chainr = Chainr.fromSpec(JsonUtils.stringToType(config.getJoltTransform(), Object.class));
+        return new CompiledSpec(annotationData, hash, chainr);
+    }
+
+    Chainr getChainr() {
+        return chainr;
+    }
+
+    private static byte[] hash(String annotationData) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(annotationData.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.jsontransform;
+
+import com.bazaarvoice.jolt.Chainr;
+import com.bazaarvoice.jolt.JsonUtilImpl;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Streams the records of JSON content that is either a top-level array or newline delimited JSON, holding only
+ * one record, or one window of records when transforming in parallel, in memory at a time. An array is written
+ * out as an array, newline delimited JSON as newline delimited JSON. A record that fails to parse (newline
+ * delimited only) or to transform is left out of the output and remembered, so the failed records can be copied
+ * out of the same content in a second pass.
+ * Output, also of {@link #transformDocument}, is serialized straight to the content as UTF-8.
+ */
+class JsonRecords {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static {
+        // parse the way Jolt's own JsonUtils does
+        JsonUtilImpl.configureStockJoltObjectMapper(MAPPER);
+        MAPPER.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        MAPPER.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+    }
+
+    private static final SerializedString NEWLINE = new SerializedString("\n");
+
+    // how far to look for the first character of the content
+    private static final int MAX_LEADING_WHITESPACE = 4096;
+
+    static class Result {
+        int records = 0;
+        final BitSet failed = new BitSet();
+        String firstError;
+
+        int getFailed() {
+            return failed.cardinality();
+        }
+
+        int getSucceeded() {
+            return records - failed.cardinality();
+        }
+
+        void fail(int record, Exception x) {
+            failed.set(record);
+            if (firstError == null) {
+                firstError = "record " + record + ": " + x;
+            }
+        }
+    }
+
+    private interface Visitor {
+        /**
+         * @param record the parsed record, null when it failed to parse
+         * @param line the raw record, only for newline delimited content
+         */
+        void visit(int index, Object record, String line, Exception parseError) throws IOException;
+    }
+
+    // a record that failed to parse or transform, in place of its transformed record
+    private static class Failure {
+        final Exception cause;
+
+        Failure(Exception cause) {
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Transforms the records of a window in place, splitting it in halves down to chunks that are
+     * transformed by a single thread
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chainr chain;
+        private final Object[] records;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        ChunkTask(Chainr chain, Object[] records, int from, int to, int chunkSize) {
+            this.chain = chain;
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    records[i] = transform(chain, records[i]);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(chain, records, from, middle, chunkSize),
+                        new ChunkTask(chain, records, middle, to, chunkSize));
+            }
+        }
+    }
+
+    /**
+     * Transform every record of the content, in parallel when given a pool: records are read into a window of
+     * chunk size records per thread of the pool, the chunks of the window are transformed by the pool and the
+     * window is written in order before the next one is read
+     * @param in must support mark, to look at the first character
+     * @param pool [optional] the pool to transform chunks of records on
+     * @param chunkSize records per chunk
+     */
+    static Result transform(InputStream in, OutputStream out, Chainr chain, ForkJoinPool pool, int chunkSize)
+            throws IOException {
+        boolean array = isArray(in);
+        JsonGenerator generator = generator(out);
+        generator.setRootValueSeparator(NEWLINE);
+        if (array) {
+            generator.writeStartArray();
+        }
+        Transformer transformer = new Transformer(generator, chain, pool, chunkSize);
+        records(in, array, transformer);
+        transformer.flush();
+        if (array) {
+            generator.writeEndArray();
+        } else if (transformer.result.getSucceeded() > 0) {
+            generator.writeRaw('\n');
+        }
+        generator.flush();
+        return transformer.result;
+    }
+
+    private static class Transformer implements Visitor {
+        final Result result = new Result();
+        private final JsonGenerator generator;
+        private final Chainr chain;
+        private final ForkJoinPool pool;
+        private final int chunkSize;
+        private final Object[] window;
+        private int buffered = 0;
+
+        Transformer(JsonGenerator generator, Chainr chain, ForkJoinPool pool, int chunkSize) {
+            this.generator = generator;
+            this.chain = chain;
+            this.pool = pool;
+            this.chunkSize = chunkSize;
+            this.window = new Object[pool == null ? 1 : chunkSize * pool.getParallelism()];
+        }
+
+        @Override
+        public void visit(int index, Object record, String line, Exception parseError) throws IOException {
+            window[buffered++] = parseError != null ? new Failure(parseError) : record;
+            if (buffered == window.length) {
+                flush();
+            }
+        }
+
+        /**
+         * Transform the buffered records and write them in order
+         */
+        void flush() throws IOException {
+            if (pool == null) {
+                for (int i = 0; i < buffered; i++) {
+                    window[i] = JsonRecords.transform(chain, window[i]);
+                }
+            } else {
+                pool.invoke(new ChunkTask(chain, window, 0, buffered, chunkSize));
+            }
+            for (int i = 0; i < buffered; i++) {
+                int index = result.records++;
+                if (window[i] instanceof Failure) {
+                    result.fail(index, ((Failure) window[i]).cause);
+                } else {
+                    MAPPER.writeValue(generator, window[i]);
+                }
+                window[i] = null;
+            }
+            buffered = 0;
+        }
+    }
+
+    private static Object transform(Chainr chain, Object record) {
+        if (record instanceof Failure) {
+            return record;
+        }
+        try {
+            return chain.transform(record);
+        } catch (RuntimeException x) {
+            return new Failure(x);
+        }
+    }
+
+    /**
+     * Copy the failed records of the content, in the format of the content
+     */
+    static void copyFailed(InputStream in, final OutputStream out, final BitSet failed) throws IOException {
+        final boolean array = isArray(in);
+        final JsonGenerator generator = generator(out);
+        generator.setRootValueSeparator(NEWLINE);
+        if (array) {
+            generator.writeStartArray();
+        }
+        records(in, array, new Visitor() {
+            @Override
+            public void visit(int index, Object record, String line, Exception parseError) throws IOException {
+                if (!failed.get(index)) {
+                    return;
+                }
+                if (line != null) {
+                    // keep a line that does not parse as it is
+                    generator.writeRaw(line);
+                    generator.writeRaw('\n');
+                } else {
+                    MAPPER.writeValue(generator, record);
+                }
+            }
+        });
+        if (array) {
+            generator.writeEndArray();
+        }
+        generator.flush();
+    }
+
+    /**
+     * @return a generator writing UTF-8 straight to the stream; the factory recycles its buffers per thread
+     */
+    static JsonGenerator generator(OutputStream out) throws IOException {
+        return MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Transform the content as a single document, written out as it is serialized
+     */
+    static void transformDocument(InputStream in, OutputStream out, Chainr chain) throws IOException {
+        Object transformed = chain.transform(MAPPER.readValue(in, Object.class));
+        JsonGenerator generator = generator(out);
+        MAPPER.writeValue(generator, transformed);
+        generator.flush();
+    }
+
+    private static boolean isArray(InputStream in) throws IOException {
+        in.mark(MAX_LEADING_WHITESPACE + 1);
+        try {
+            for (int i = 0; i <= MAX_LEADING_WHITESPACE; i++) {
+                int c = in.read();
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                    return c == '[';
+                }
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static void records(InputStream in, boolean array, Visitor visitor) throws IOException {
+        int index = 0;
+        if (array) {
+            try (JsonParser parser = MAPPER.getFactory().createParser(in)) {
+                parser.nextToken(); // the start of the array
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new IOException("Unexpected end of content in record " + index);
+                    }
+                    // a record that does not parse leaves no way to find the next one, so it fails the content
+                    visitor.visit(index++, MAPPER.readValue(parser, Object.class), null, null);
+                }
+            }
+        } else {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Object record = null;
+                Exception parseError = null;
+                try {
+                    record = MAPPER.readValue(line, Object.class);
+                } catch (IOException x) {
+                    parseError = x;
+                }
+                visitor.visit(index++, record, line, parseError);
+            }
+        }
+    }
+}
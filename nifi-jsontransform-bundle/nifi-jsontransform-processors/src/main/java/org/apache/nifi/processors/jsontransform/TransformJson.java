@@ -17,8 +17,8 @@
 package org.apache.nifi.processors.jsontransform;
 
 import com.bazaarvoice.jolt.Chainr;
-import com.bazaarvoice.jolt.JsonUtils;
-import org.apache.nifi.processors.jsontransform.model.EvaluationContextEntity;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
@@ -27,6 +27,7 @@ import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ProcessorLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
@@ -43,14 +44,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"json", "transform", "transformation", "jolt"})
 @CapabilityDescription("Performs Json to Json transformations using Jolt specifications.")
 @SeeAlso({})
 @ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+        @WritesAttribute(attribute="transform.records", description="Records mode only; number of records in the flow file"),
+        @WritesAttribute(attribute="transform.error", description="Records mode only; the first error of a flow file holding the records that failed")
+})
+@SupportsBatching
 public class TransformJson extends AbstractProcessor {
 
 
@@ -64,12 +72,69 @@ public class TransformJson extends AbstractProcessor {
             .description("Errors about failed transformations will be sent here")
             .build();
 
+    public enum Content {
+        Document,
+        Records
+    }
+
+    public static final PropertyDescriptor CONTENT = new PropertyDescriptor.Builder()
+            .name("CONTENT").displayName("Content")
+            .description("Whether a flow file is transformed as a single Json document, or holds records that are parsed, " +
+                    "transformed and written one at a time: either a top-level Json array or newline delimited Json. " +
+                    "The records that fail go to failure together, the rest of the flow file goes to success")
+            .required(true)
+            .defaultValue(Content.Document.name())
+            .allowableValues(Content.values())
+            .build();
+
+    public static final PropertyDescriptor PARALLELISM = new PropertyDescriptor.Builder()
+            .name("PARALLELISM").displayName("Record Parallelism")
+            .description("Only applicable to Records content; number of threads the records of a single flow file are " +
+                    "transformed on, in chunks, with the output kept in the order of the records. 1 transforms them " +
+                    "on the processor's thread")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("CHUNK_SIZE").displayName("Record Chunk Size")
+            .description("Only applicable to a Record Parallelism above 1; number of records transformed as one unit of " +
+                    "work. Up to this many records per thread are held in memory")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("BATCH_SIZE").displayName("Batch Size")
+            .description("Maximum number of flow files transformed in a single run. The compiled transformation is " +
+                    "shared by all concurrent tasks, so raise the concurrent tasks as well to use more cores")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
     private Set<Relationship> relationships;
 
     AtomicBoolean isValid = new AtomicBoolean(true);
 
+    // the spec compiled from the current annotation data, shared by all concurrent tasks; Chainr is stateless
+    private final AtomicReference<CompiledSpec> spec = new AtomicReference<>();
+
+    // transforms the records of a flow file in parallel, shared by all concurrent tasks
+    private volatile ForkJoinPool recordPool;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(CONTENT);
+        descriptors.add(PARALLELISM);
+        descriptors.add(CHUNK_SIZE);
+        descriptors.add(BATCH_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(SUCCESS);
@@ -82,6 +147,11 @@ public class TransformJson extends AbstractProcessor {
         return this.relationships;
     }
 
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
     @Override
     protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
         return new PropertyDescriptor.Builder()
@@ -105,8 +175,7 @@ public class TransformJson extends AbstractProcessor {
             getLogger().warn("No transformation specified");
         } else {
             try {
-                EvaluationContextEntity config = JsonUtils.stringToType(configData, EvaluationContextEntity.class);
-                JsonUtils.stringToType(config.getJoltTransform(), Object.class);
+                chainr(configData);
             } catch (Exception x) {
                 ValidationResult badConfig = new ValidationResult.Builder()
                         .explanation("Invalid transformation")
@@ -120,30 +189,91 @@ public class TransformJson extends AbstractProcessor {
         return result;
     }
 
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        chainr(context.getAnnotationData());
+        final int parallelism = context.getProperty(PARALLELISM).asInteger();
+        if (parallelism > 1 && Content.valueOf(context.getProperty(CONTENT).getValue()) == Content.Records) {
+            recordPool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    t.setName(TransformJson.this + "-records-" + t.getPoolIndex());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, null, false);
+        }
+    }
+
+    @OnStopped
+    public void stopRecordPool() {
+        if (recordPool != null) {
+            recordPool.shutdownNow();
+            recordPool = null;
+        }
+    }
+
+    /**
+     * @return the Jolt chain for the annotation data, only compiled again when the annotation data changed
+     */
+    private Chainr chainr(String annotationData) {
+        CompiledSpec previous = spec.get();
+        CompiledSpec compiled = CompiledSpec.compile(annotationData, previous);
+        if (compiled != previous) {
+            spec.compareAndSet(previous, compiled);
+        }
+        return compiled.getChainr();
+    }
+
+    /**
+     * @return the spec compiled last, or null before the first run
+     */
+    CompiledSpec getCompiledSpec() {
+        return spec.get();
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         if (!isValid.get()) return; // silence warnings?
 
-        final FlowFile original = session.get();
-		if ( original == null ) {
-			return;
-		}
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
 
         final ProcessorLog logger = getLogger();
+        final StopWatch batchWatch = new StopWatch(true);
+        final Chainr chain = chainr(context.getAnnotationData());
+        final boolean records = Content.valueOf(context.getProperty(CONTENT).getValue()) == Content.Records;
+        final ForkJoinPool pool = recordPool;
+        final int chunkSize = context.getProperty(CHUNK_SIZE).asInteger();
+        int failed = 0;
+        for (FlowFile original : flowFiles) {
+            boolean transformed = records ? transformRecords(session, original, chain, pool, chunkSize)
+                    : transform(session, original, chain);
+            if (!transformed) {
+                failed++;
+            }
+        }
+        session.adjustCounter("FlowFiles Transformed", flowFiles.size() - failed, false);
+        session.adjustCounter("FlowFiles Failed", failed, false);
+        logger.debug("Transformed {} flow files, {} failed, in {} ms",
+                new Object[]{flowFiles.size() - failed, failed, batchWatch.getElapsed(TimeUnit.MILLISECONDS)});
+    }
+
+    /**
+     * Transform a single flow file and route it
+     * @return whether the transformation succeeded
+     */
+    private boolean transform(final ProcessSession session, final FlowFile original, final Chainr chain) {
         final StopWatch stopWatch = new StopWatch(true);
         try {
             FlowFile transformed = session.write(original, new StreamCallback() {
                 @Override
                 public void process(final InputStream rawIn, final OutputStream out) throws IOException {
                     try (final InputStream in = new BufferedInputStream(rawIn)) {
-                        // TODO this can be optimized by not doing this every time - while respecting changes
-                        String configData = context.getAnnotationData();
-                        EvaluationContextEntity config = JsonUtils.stringToType(configData, EvaluationContextEntity.class);
-                        Chainr chain = Chainr.fromSpec(JsonUtils.stringToType(config.getJoltTransform(), Object.class));
-                        // TODO end
-                        Object input = JsonUtils.streamToType(in, Object.class);
-                        Object transformed = chain.transform(input);
-                        out.write(JsonUtils.toJsonString(transformed).getBytes());
+                        JsonRecords.transformDocument(in, out, chain);
                     } catch (final Exception e) {
                         throw new IOException(e);
                     }
@@ -151,11 +281,65 @@ public class TransformJson extends AbstractProcessor {
             });
             session.transfer(transformed, SUCCESS);
             session.getProvenanceReporter().modifyContent(transformed, stopWatch.getElapsed(TimeUnit.MILLISECONDS));
-            logger.info("Transformed {}", new Object[]{original});
+            return true;
         } catch (ProcessException e) {
-            logger.error("Unable to transform {} due to {}", new Object[]{original, e});
+            getLogger().error("Unable to transform {} due to {}", new Object[]{original, e});
             session.transfer(original, FAILURE);
+            return false;
         }
     }
 
+    /**
+     * Transform the records of a single flow file one at a time; the records that fail go to failure in a flow file
+     * of their own
+     * @return whether all records were transformed
+     */
+    private boolean transformRecords(final ProcessSession session, FlowFile original, final Chainr chain,
+                                     final ForkJoinPool pool, final int chunkSize) {
+        final StopWatch stopWatch = new StopWatch(true);
+        final JsonRecords.Result[] result = new JsonRecords.Result[1];
+        // the clone shares the content, which stays readable for a second pass over the failed records
+        FlowFile transformed = session.clone(original);
+        try {
+            transformed = session.write(transformed, new StreamCallback() {
+                @Override
+                public void process(final InputStream rawIn, final OutputStream out) throws IOException {
+                    try (final InputStream in = new BufferedInputStream(rawIn)) {
+                        result[0] = JsonRecords.transform(in, out, chain, pool, chunkSize);
+                    }
+                }
+            });
+        } catch (ProcessException e) {
+            getLogger().error("Unable to transform {} due to {}", new Object[]{original, e});
+            session.remove(transformed);
+            session.transfer(original, FAILURE);
+            return false;
+        }
+        if (result[0].getSucceeded() > 0 || result[0].getFailed() == 0) {
+            transformed = session.putAttribute(transformed, "transform.records", String.valueOf(result[0].getSucceeded()));
+            session.transfer(transformed, SUCCESS);
+            session.getProvenanceReporter().modifyContent(transformed, stopWatch.getElapsed(TimeUnit.MILLISECONDS));
+        } else {
+            session.remove(transformed);
+        }
+        if (result[0].getFailed() == 0) {
+            session.remove(original);
+            return true;
+        }
+        getLogger().error("Unable to transform {} of {} records in {}, first error {}",
+                new Object[]{result[0].getFailed(), result[0].records, original, result[0].firstError});
+        original = session.write(original, new StreamCallback() {
+            @Override
+            public void process(final InputStream rawIn, final OutputStream out) throws IOException {
+                try (final InputStream in = new BufferedInputStream(rawIn)) {
+                    JsonRecords.copyFailed(in, out, result[0].failed);
+                }
+            }
+        });
+        original = session.putAttribute(original, "transform.records", String.valueOf(result[0].getFailed()));
+        original = session.putAttribute(original, "transform.error", result[0].firstError);
+        session.transfer(original, FAILURE);
+        return false;
+    }
+
 }
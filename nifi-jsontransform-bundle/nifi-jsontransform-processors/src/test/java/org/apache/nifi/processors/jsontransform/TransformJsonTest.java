@@ -16,11 +16,18 @@
  */
 package org.apache.nifi.processors.jsontransform;
 
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
 
 public class TransformJsonTest {
 
@@ -31,9 +38,101 @@ public class TransformJsonTest {
         testRunner = TestRunners.newTestRunner(TransformJson.class);
     }
 
+    private static String config(String spec) {
+        return "{\"joltTransform\":\"" + spec.replace("\"", "\\\"") + "\"}";
+    }
+
     @Test
     public void testProcessor() {
 
     }
 
+    @Test
+    public void testSpecCompiledOnceAndRecompiledOnChange() {
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"b\"}}]"));
+        TransformJson processor = (TransformJson) testRunner.getProcessor();
+        testRunner.enqueue("{\"a\":1}".getBytes());
+        testRunner.run();
+        CompiledSpec compiled = processor.getCompiledSpec();
+        assertNotNull(compiled);
+        testRunner.enqueue("{\"a\":2}".getBytes());
+        testRunner.run();
+        assertSame(compiled, processor.getCompiledSpec());
+        testRunner.assertAllFlowFilesTransferred(TransformJson.SUCCESS, 2);
+        List<MockFlowFile> out = testRunner.getFlowFilesForRelationship(TransformJson.SUCCESS);
+        out.get(0).assertContentEquals("{\"b\":1}");
+        out.get(1).assertContentEquals("{\"b\":2}");
+
+        testRunner.clearTransferState();
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"c\"}}]"));
+        testRunner.enqueue("{\"a\":3}".getBytes());
+        testRunner.run();
+        assertNotSame(compiled, processor.getCompiledSpec());
+        testRunner.getFlowFilesForRelationship(TransformJson.SUCCESS).get(0).assertContentEquals("{\"c\":3}");
+    }
+
+    @Test
+    public void testBatch() {
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"b\"}}]"));
+        testRunner.setProperty(TransformJson.BATCH_SIZE, "3");
+        testRunner.enqueue("{\"a\":1}".getBytes());
+        testRunner.enqueue("not json".getBytes());
+        testRunner.enqueue("{\"a\":3}".getBytes());
+        testRunner.enqueue("{\"a\":4}".getBytes());
+        testRunner.run();
+        testRunner.assertTransferCount(TransformJson.SUCCESS, 2);
+        testRunner.assertTransferCount(TransformJson.FAILURE, 1);
+        testRunner.assertQueueNotEmpty();
+    }
+
+    @Test
+    public void testRecordsArray() {
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"b\"}}]"));
+        testRunner.setProperty(TransformJson.CONTENT, TransformJson.Content.Records.name());
+        testRunner.enqueue(" [{\"a\":1}, {\"a\":2}]".getBytes());
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(TransformJson.SUCCESS, 1);
+        MockFlowFile out = testRunner.getFlowFilesForRelationship(TransformJson.SUCCESS).get(0);
+        out.assertContentEquals("[{\"b\":1},{\"b\":2}]");
+        out.assertAttributeEquals("transform.records", "2");
+    }
+
+    @Test
+    public void testRecordsLinesWithFailure() {
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"b\"}}]"));
+        testRunner.setProperty(TransformJson.CONTENT, TransformJson.Content.Records.name());
+        testRunner.enqueue("{\"a\":1}\n{\"a\":\n\n{\"a\":3}\n".getBytes());
+        testRunner.run();
+        testRunner.assertTransferCount(TransformJson.SUCCESS, 1);
+        testRunner.assertTransferCount(TransformJson.FAILURE, 1);
+        MockFlowFile out = testRunner.getFlowFilesForRelationship(TransformJson.SUCCESS).get(0);
+        out.assertContentEquals("{\"b\":1}\n{\"b\":3}\n");
+        out.assertAttributeEquals("transform.records", "2");
+        MockFlowFile failed = testRunner.getFlowFilesForRelationship(TransformJson.FAILURE).get(0);
+        failed.assertContentEquals("{\"a\":\n");
+        failed.assertAttributeEquals("transform.records", "1");
+        failed.assertAttributeExists("transform.error");
+    }
+
+    @Test
+    public void testRecordsInParallelKeepOrder() {
+        testRunner.setAnnotationData(config("[{\"operation\":\"shift\",\"spec\":{\"a\":\"b\"}}]"));
+        testRunner.setProperty(TransformJson.CONTENT, TransformJson.Content.Records.name());
+        testRunner.setProperty(TransformJson.PARALLELISM, "4");
+        testRunner.setProperty(TransformJson.CHUNK_SIZE, "3");
+        StringBuilder in = new StringBuilder("[");
+        StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            String separator = i == 0 ? "" : ",";
+            in.append(separator).append("{\"a\":").append(i).append('}');
+            expected.append(separator).append("{\"b\":").append(i).append('}');
+        }
+        testRunner.enqueue(in.append(']').toString().getBytes());
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(TransformJson.SUCCESS, 1);
+        MockFlowFile out = testRunner.getFlowFilesForRelationship(TransformJson.SUCCESS).get(0);
+        out.assertContentEquals(expected.append(']').toString());
+        out.assertAttributeEquals("transform.records", "100");
+    }
+
 }